@@ -0,0 +1,198 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous access to a {BPlusTree}.
+ * <p>
+ * Every operation runs as a task on the given executor and completes a
+ * {CompletableFuture}, so callers never block on the tree. Pass an executor
+ * that suits blocking work, e.g. a dedicated I/O pool or, on JDKs that have
+ * them, a virtual thread per task executor. Lookups of a key that is
+ * already being looked up share the pending future instead of descending
+ * the tree again; a write to the key detaches the pending lookup so later
+ * lookups see the new value.
+ * <p>
+ * The tree is guarded by a read/write lock. Reads only share the read lock
+ * if the tree has neither a lookup cache nor write buffers, since both are
+ * updated by reads.
+ */
+public class AsyncBPlusTree {
+
+    private final BPlusTree tree;
+
+    private final Executor executor;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final ConcurrentMap<Integer, CompletableFuture<String>> pendingLookups =
+            new ConcurrentHashMap<>();
+
+    public AsyncBPlusTree(BPlusTree tree, Executor executor) {
+        this.tree = tree;
+        this.executor = executor;
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     * @return A future of the stored value, or of {null} if the key does
+     * not exist.
+     */
+    public CompletableFuture<String> lookupAsync(int key) {
+        CompletableFuture<String> pending = pendingLookups.get(key);
+        if (pending != null) {
+            return pending;
+        }
+        CompletableFuture<String> future = new CompletableFuture<>();
+        pending = pendingLookups.putIfAbsent(key, future);
+        if (pending != null) {
+            return pending;
+        }
+        executor.execute(() -> {
+            try {
+                String value = read(() -> tree.lookup(key));
+                pendingLookups.remove(key, future);
+                future.complete(value);
+            } catch (RuntimeException e) {
+                pendingLookups.remove(key, future);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Insert the key/value pair.
+     */
+    public CompletableFuture<Void> insertAsync(int key, String value) {
+        pendingLookups.remove(key);
+        return CompletableFuture.runAsync(() -> write(() -> {
+            tree.insert(key, value);
+            return null;
+        }), executor);
+    }
+
+    /**
+     * Delete the key/value pair.
+     * @return A future of the original value, or of {null} if the key does
+     * not exist.
+     */
+    public CompletableFuture<String> deleteAsync(int key) {
+        pendingLookups.remove(key);
+        return CompletableFuture.supplyAsync(() -> write(() -> tree.delete(key)),
+                                             executor);
+    }
+
+    /**
+     * Replace the value stored under key by {function(key, value)} while
+     * holding the write lock, see {BPlusTree.compute}.
+     * @return A future of the new value.
+     */
+    public CompletableFuture<String> computeAsync(int key,
+            BiFunction<Integer, String, String> function) {
+        pendingLookups.remove(key);
+        return CompletableFuture.supplyAsync(
+                () -> write(() -> tree.compute(key, function)), executor);
+    }
+
+    /**
+     * Read the first batch of at most {batchSize} entries with
+     * {from <= key < to}. A {null} bound leaves that side of the range open.
+     * The lock is only held while a batch is copied, writes may happen
+     * between two batches.
+     */
+    public CompletableFuture<ScanBatch> scanAsync(Integer from, Integer to,
+                                                  int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        return CompletableFuture.supplyAsync(() -> read(() -> {
+            List<Map.Entry<Integer, String>> entries = new ArrayList<>(batchSize);
+            Iterator<Map.Entry<Integer, String>> it = tree.scan(from, to);
+            while (it.hasNext() && entries.size() < batchSize) {
+                entries.add(it.next());
+            }
+            boolean more = it.hasNext();
+            return new ScanBatch(entries, more, to, batchSize);
+        }), executor);
+    }
+
+    private <T> T read(Supplier<T> action) {
+        //the lookup cache and the write buffers are not safe for shared reads
+        Lock readLock = tree.getLookupCache() == null && tree.getWriteBufferSize() == 0
+                ? lock.readLock() : lock.writeLock();
+        readLock.lock();
+        try {
+            return action.get();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private <T> T write(Supplier<T> action) {
+        lock.writeLock().lock();
+        try {
+            return action.get();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * One batch of a scan, the next batch continues after the last key.
+     */
+    public class ScanBatch {
+
+        private final List<Map.Entry<Integer, String>> entries;
+
+        private final boolean more;
+
+        private final Integer to;
+
+        private final int batchSize;
+
+        ScanBatch(List<Map.Entry<Integer, String>> entries, boolean more,
+                  Integer to, int batchSize) {
+            this.entries = Collections.unmodifiableList(entries);
+            this.more = more;
+            this.to = to;
+            this.batchSize = batchSize;
+        }
+
+        public List<Map.Entry<Integer, String>> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return {true} if the range had more entries when this batch was
+         * read.
+         */
+        public boolean hasMore() {
+            return more;
+        }
+
+        /**
+         * Read the next batch of the scan.
+         */
+        public CompletableFuture<ScanBatch> next() {
+            if (!more) {
+                throw new IllegalStateException("Scan is complete");
+            }
+            int last = entries.get(entries.size() - 1).getKey();
+            return scanAsync(last + 1, to, batchSize);
+        }
+    }
+
+}
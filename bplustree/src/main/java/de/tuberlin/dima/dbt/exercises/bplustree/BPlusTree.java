@@ -1,16 +1,21 @@
 package de.tuberlin.dima.dbt.exercises.bplustree;
 
-import java.util.AbstractMap;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Deque;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * Implementation of a B+ tree.
@@ -37,31 +42,40 @@ public class BPlusTree {
     private LeafNode findLeafNode(Integer key, Node node,
                                   Deque<InnerNode> parents) {
         if (node instanceof LeafNode) {
+            if (parents != null) {
+                node.markDirty();
+            }
             return (LeafNode) node;
         } else {
             InnerNode innerNode = (InnerNode) node;
             if (parents != null) {
+                //only writers collect the path, its hashes become stale
                 parents.push(innerNode);
-            } else{
-                parents = new ArrayDeque<InnerNode>();
-                parents.push(innerNode);
+                innerNode.markDirty();
             }
             // TODO: traverse inner nodes to find leaf node
 
             Node[] children = innerNode.getChildren();
-            int numberOfKeys = innerNode.keys.length;
+            return findLeafNode(key, children[findChildIndex(key, innerNode)], parents);
+        }
+    }
 
-            int counter;
-            for(counter = 0; counter < numberOfKeys; counter++){
-                if(innerNode.keys[counter] == null){
-                    break;
-                }
-                if(key < innerNode.keys[counter]){
-                    return findLeafNode(key, children[counter], parents);
-                }
+    /**
+     * Find the position of the child responsible for key in inner node
+     */
+    private int findChildIndex(Integer key, InnerNode innerNode) {
+        int numberOfKeys = innerNode.keys.length;
+
+        int counter;
+        for(counter = 0; counter < numberOfKeys; counter++){
+            if(innerNode.keys[counter] == null){
+                break;
+            }
+            if(key < innerNode.keys[counter]){
+                return counter;
             }
-            return findLeafNode(key, children[counter], parents);
         }
+        return counter;
     }
 
     /**
@@ -69,118 +83,199 @@ public class BPlusTree {
      * @return The stored value, or {null} if the key does not exist.
      */
     private String lookupInLeafNode(Integer key, LeafNode node) {
+        if(leafFilters && !node.mightContain(key)){
+            return null;
+        }
+        if(node instanceof CompressedLeafNode){
+            //search the packed keys instead of decoding the leaf
+            CompressedLeafNode compressed = (CompressedLeafNode) node;
+            int position = compressed.find(key);
+            return position == -1 ? null : compressed.valueAt(position);
+        }
+        int position = findPositionInLeafNode(key, node);
+        if(position == -1){
+            return null;
+        }
+        return node.getValues()[position];
+    }
+
+    /**
+     * Find the position of the key in leaf node
+     * @return The position, or {-1} if the key does not exist.
+     */
+    private int findPositionInLeafNode(Integer key, LeafNode node) {
         Integer[] leafKeys = node.getKeys();
         int numberOfKeys = leafKeys.length;
         for(int i=0; i<numberOfKeys; i++){
             if(key.equals(leafKeys[i])){
-                return node.getValues()[i];
+                return i;
             }
         }
-        return null;
+        return -1;
+    }
+
+    /**
+     * Store value under key, entries of the leaf only move if the key is new.
+     * If the key exists, the value either replaces the stored values or is
+     * added to them in multi-value mode.
+     * @return The replaced value, or {null} if the key did not exist.
+     */
+    private String putIntoTree(int key, String value, boolean addValue) {
+        Deque<InnerNode> parents = takePath();
+        LeafNode leafNode = findLeafNode(key, root, parents);
+        int position = findPositionInLeafNode(key, leafNode);
+        if(position == -1){
+            insertIntoLeafNode(key, value, leafNode, parents);
+            returnPath(parents);
+            return null;
+        }
+        returnPath(parents);
+        if(addValue && multiValued){
+            overflowValues.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+            return null;
+        }
+        //replace in place, order of the leaf does not change
+        String[] leafValues = leafNode.getValues();
+        String oldValue = leafValues[position];
+        leafValues[position] = value;
+        overflowValues.remove(key);
+        return oldValue;
     }
 
     /**
-     * Insert value into leaf node (and propagate changes up)
+     * Insert value into leaf node (and propagate changes up). The entries
+     * are shifted in place, a full leaf moves its upper half into a new
+     * leaf.
      */
     private void insertIntoLeafNode(Integer key, String value, LeafNode node, Deque<InnerNode> parents){
+        appendLeaf = null;
         Integer[] leafKeys = node.getKeys();
         String[] leafValues = node.getValues();
+        int occupancy = getNodeOccupancy(leafKeys);
+        int position = 0;
+        while(position < occupancy && leafKeys[position] < key){
+            position++;
+        }
+
+        if(occupancy < this.capacity){
+            System.arraycopy(leafKeys, position, leafKeys, position + 1, occupancy - position);
+            System.arraycopy(leafValues, position, leafValues, position + 1, occupancy - position);
+            leafKeys[position] = key;
+            leafValues[position] = value;
+            node.keysChanged();
+            return;
+        }
 
-        if(getNodeOccupancy(leafKeys) < this.capacity){
-            //add new element at the end
-            leafKeys[this.capacity - 1] = key;
-            leafValues[this.capacity - 1] = value;
-
-            //set keys and values
-            node.setKeys(leafKeys);
-            node.setValues(leafValues);
-
-            //sort new node
-            sortClean(node);
-
-        }else{
-            //not enough space -> split leaf
-            int middle = this.capacity / 2;
-            Integer []tmpKeys =  Arrays.copyOf(leafKeys, this.capacity + 2);
-            String []tmpValues =  Arrays.copyOf(leafValues, this.capacity + 2);
-            tmpKeys[this.capacity + 1] = key;
-            tmpValues[this.capacity + 1] = value;
-            LeafNode tmpLeaf = new LeafNode(tmpKeys, tmpValues, this.capacity + 2);
-            sortClean(tmpLeaf);
-
-            //copy results to right nodes
-            //existing leaf
-            leafKeys = new Integer[this.capacity];
-            leafValues = new String[this.capacity];
-            System.arraycopy(tmpLeaf.getKeys(), 0, leafKeys, 0, middle);
-            System.arraycopy(tmpLeaf.getValues(), 0, leafValues, 0, middle);
-
-            //new parent Value
-            Integer newParentValue = tmpLeaf.getKeys()[middle];
-
-            //new leaf
-            Integer []newKeys = new Integer[this.capacity];
-            String []newValues = new String[this.capacity];
-            System.arraycopy(tmpLeaf.getKeys(), middle, newKeys, 0, middle + 1);
-            System.arraycopy(tmpLeaf.getValues(), middle, newValues, 0, middle + 1);
-            LeafNode newLeaf = new LeafNode(newKeys, newValues, this.capacity);
-
-            //set keys and values
-            node.setKeys(leafKeys);
-            node.setValues(leafValues);
-            
-            //update parent
-            updateParentInsert(parents, newParentValue, node, newLeaf);
+        //not enough space -> split leaf, the new leaf gets the upper
+        //capacity/2 + 1 of the capacity + 1 entries
+        int middle = this.capacity / 2;
+        LeafNode newLeaf = newLeafNode();
+        Integer[] newKeys = newLeaf.getKeys();
+        String[] newValues = newLeaf.getValues();
+        if(position >= middle){
+            int before = position - middle;
+            System.arraycopy(leafKeys, middle, newKeys, 0, before);
+            System.arraycopy(leafValues, middle, newValues, 0, before);
+            newKeys[before] = key;
+            newValues[before] = value;
+            System.arraycopy(leafKeys, position, newKeys, before + 1, this.capacity - position);
+            System.arraycopy(leafValues, position, newValues, before + 1, this.capacity - position);
+        } else{
+            System.arraycopy(leafKeys, middle - 1, newKeys, 0, this.capacity - middle + 1);
+            System.arraycopy(leafValues, middle - 1, newValues, 0, this.capacity - middle + 1);
+            System.arraycopy(leafKeys, position, leafKeys, position + 1, middle - 1 - position);
+            System.arraycopy(leafValues, position, leafValues, position + 1, middle - 1 - position);
+            leafKeys[position] = key;
+            leafValues[position] = value;
         }
+        Arrays.fill(leafKeys, middle, this.capacity, null);
+        Arrays.fill(leafValues, middle, this.capacity, null);
+        node.keysChanged();
+
+        //update parent
+        updateParentInsert(parents, newKeys[0], node, newLeaf);
     }
 
     private void updateParentInsert(Deque<InnerNode> parents, Integer newKey, Node leftNode, Node rightNode){
+        updateParentInsert(parents, newKey, leftNode, rightNode, false);
+    }
+
+    /**
+     * Insert the new right node into the parent. An append split keeps the
+     * full parent as it is and starts the new inner node with the right
+     * node as its only child.
+     */
+    private void updateParentInsert(Deque<InnerNode> parents, Integer newKey, Node leftNode, Node rightNode,
+                                    boolean appendSplit){
         //right node is new
-        int parentsSize = parents.size();
-        if(parentsSize == 0){
-            Integer[] innerKeys = Arrays.copyOf(new Integer[] {}, this.capacity);
-            innerKeys[0] = newKey;
-            Node[] children = Arrays.copyOf(new Node[] {}, this.capacity + 1);
-            children[0] = leftNode;
-            children[1] = rightNode;
-            InnerNode newNode = new InnerNode(innerKeys, children, this.capacity);
-            this.root = newNode;
+        if(parents.isEmpty()){
+            InnerNode newRoot = newInnerNode();
+            newRoot.getKeys()[0] = newKey;
+            newRoot.getChildren()[0] = leftNode;
+            newRoot.getChildren()[1] = rightNode;
+            this.root = newRoot;
             return;
-        } 
-        
+        }
+
         InnerNode parent = parents.getFirst();
-        Node []children = parent.getChildren();
-        Integer []innerKeys = parent.getKeys();
-        if(getNodeOccupancy(parent.getKeys()) == this.capacity){
-            Integer[] oversizeKeys = Arrays.copyOf(innerKeys, this.capacity + 1);
-            Node[] oversizeChildren = Arrays.copyOf(children, this.capacity + 2);
-            insertSortNode(oversizeKeys, oversizeChildren, newKey, rightNode);
-
-            //get Key for parent
-            int middle = this.capacity / 2;
-            Integer middleKey = oversizeKeys[middle];
-
-            //split inner node and push middle key up
-            parent.setKeys(Arrays.copyOfRange(oversizeKeys, 0, middle));
-            parent.setChildren(Arrays.copyOfRange(oversizeChildren, 0, middle + 1));
-
-            //copy upper half exept middle key to new inner node
-            Integer []newKeys = Arrays.copyOfRange(oversizeKeys, middle + 1, this.capacity + 1);
-            Node []newChildren = Arrays.copyOfRange(oversizeChildren, middle + 1, this.capacity + 2);
-            InnerNode newNode = new InnerNode(newKeys, newChildren, this.capacity);
-
-            //update parent
-            parents.removeFirst();
-            updateParentInsert(parents, middleKey, parent, newNode);
-        } else{
+        parent.markDirty();
+        Node[] children = parent.getChildren();
+        Integer[] innerKeys = parent.getKeys();
+        if(getNodeOccupancy(innerKeys) < this.capacity){
             insertSortNode(innerKeys, children, newKey, rightNode);
+            return;
+        }
 
-            //set children and keys
-            parent.setChildren(children);
-            parent.setKeys(innerKeys);
+        //split the capacity + 1 keys around the middle key, which moves up
+        int middle = appendSplit ? this.capacity : this.capacity / 2;
+        int position = 0;
+        while(position < this.capacity && innerKeys[position] < newKey){
+            position++;
+        }
+        InnerNode newNode = newInnerNode();
+        Integer[] newKeys = newNode.getKeys();
+        Node[] newChildren = newNode.getChildren();
+        Integer middleKey;
+        if(position > middle){
+            //the new key ends up in the new node
+            middleKey = innerKeys[middle];
+            int before = position - middle - 1;
+            System.arraycopy(innerKeys, middle + 1, newKeys, 0, before);
+            newKeys[before] = newKey;
+            System.arraycopy(innerKeys, position, newKeys, before + 1, this.capacity - position);
+            System.arraycopy(children, middle + 1, newChildren, 0, before + 1);
+            newChildren[before + 1] = rightNode;
+            System.arraycopy(children, position + 1, newChildren, before + 2, this.capacity - position);
+        } else if(position == middle){
+            //the new key itself moves up
+            middleKey = newKey;
+            System.arraycopy(innerKeys, middle, newKeys, 0, this.capacity - middle);
+            newChildren[0] = rightNode;
+            System.arraycopy(children, middle + 1, newChildren, 1, this.capacity - middle);
+        } else{
+            //the new key stays in the parent
+            middleKey = innerKeys[middle - 1];
+            System.arraycopy(innerKeys, middle, newKeys, 0, this.capacity - middle);
+            System.arraycopy(children, middle, newChildren, 0, this.capacity - middle + 1);
+            System.arraycopy(innerKeys, position, innerKeys, position + 1, middle - 1 - position);
+            System.arraycopy(children, position + 1, children, position + 2, middle - 1 - position);
+            innerKeys[position] = newKey;
+            children[position + 1] = rightNode;
+        }
+        Arrays.fill(innerKeys, middle, this.capacity, null);
+        Arrays.fill(children, middle + 1, this.capacity + 1, null);
+
+        //pending writes follow their subtree
+        if(parent.hasMessages()){
+            Map<Integer, String> moved = parent.getMessages().tailMap(middleKey);
+            newNode.getMessages().putAll(moved);
+            moved.clear();
         }
-    }
 
+        //update parent
+        parents.removeFirst();
+        updateParentInsert(parents, middleKey, parent, newNode, appendSplit);
+    }
 
     private void insertSortNode(Integer[] NodeKeys, Node[] nodes, Integer newKey, Node newNode){
         //make sure there is space
@@ -218,315 +313,485 @@ public class BPlusTree {
         return occupied;
     }
 
-    private Integer getUpperBoundKey(Integer []keys, Integer key){
-        int occupancy = getNodeOccupancy(keys);
-        for(int i=0; i<occupancy; i++){
-            if(key < keys[i]){
-                return keys[i];
+    private void deletePositionOfAssociatedArrays(int position, Integer[] keys, String[] values){
+        //delete element
+        if(position != capacity - 1){
+            for(int i=position; i < capacity - 1; i++){
+                keys[i] = keys[i + 1];
+                values[i] = values[i + 1];
             }
         }
-        return null;
+        keys[capacity - 1] = null;
+        values[capacity - 1] = null;
     }
 
-    private Node getNeighbor(InnerNode parent, Integer key, boolean getRightNode){
-        Integer []innerNodeKeys = parent.getKeys();
-        //Node at position parent.getChildren[upperBound] isnode with key
-        Integer upperBound = getUpperBoundKey(innerNodeKeys, key);
-        boolean getLeftNode = !getRightNode;
-
-        //return null if there is no neighbor
-        if(upperBound == innerNodeKeys[0] && getLeftNode){
-            return null;
-        }
-        if(upperBound == null && getRightNode){
-            return null;
+    /**
+     * Position of child in the children of parent
+     * @return The position, or {-1} if node is not a child of parent.
+     */
+    private int findChildPosition(InnerNode parent, Node child){
+        Node[] children = parent.getChildren();
+        int occupancy = getNodeOccupancy(parent.getKeys());
+        for(int i=0; i<=occupancy; i++){
+            if(children[i] == child){
+                return i;
+            }
         }
+        return -1;
+    }
 
-        //with upperBound get Indexes of neighbors
-        int occupancy = getNodeOccupancy(innerNodeKeys);
-        Node []children = parent.getChildren();
-        for(int i=0; i<occupancy; i++){
-            if(innerNodeKeys[i] == upperBound){ 
-                if(getRightNode){
-                    return children[i + 1];
-                } else{
-                    return children[i - 1];
-                }
+    /**
+     * Move one entry (or child) from a sibling into the child at position
+     * and update the separator between them. Inner nodes rotate the
+     * separator down and the first/last key of the sibling up.
+     */
+    private void stealFromNeighbor(InnerNode parent, int position, boolean stealFromRight){
+        Integer[] parentKeys = parent.getKeys();
+        Node[] children = parent.getChildren();
+        Node thief = children[position];
+        Node victim = children[stealFromRight ? position + 1 : position - 1];
+        parent.markDirty();
+        thief.markDirty();
+        victim.markDirty();
+        int separator = stealFromRight ? position : position - 1;
+        Integer[] thiefKeys = thief.getKeys();
+        Integer[] victimKeys = victim.getKeys();
+        int thiefOccupancy = getNodeOccupancy(thiefKeys);
+        int victimOccupancy = getNodeOccupancy(victimKeys);
+
+        if(thief instanceof LeafNode){
+            String[] thiefValues = ((LeafNode) thief).getValues();
+            String[] victimValues = ((LeafNode) victim).getValues();
+            if(stealFromRight){
+                thiefKeys[thiefOccupancy] = victimKeys[0];
+                thiefValues[thiefOccupancy] = victimValues[0];
+                deletePositionOfAssociatedArrays(0, victimKeys, victimValues);
+                parentKeys[separator] = victimKeys[0];
+            } else{
+                System.arraycopy(thiefKeys, 0, thiefKeys, 1, thiefOccupancy);
+                System.arraycopy(thiefValues, 0, thiefValues, 1, thiefOccupancy);
+                thiefKeys[0] = victimKeys[victimOccupancy - 1];
+                thiefValues[0] = victimValues[victimOccupancy - 1];
+                victimKeys[victimOccupancy - 1] = null;
+                victimValues[victimOccupancy - 1] = null;
+                parentKeys[separator] = thiefKeys[0];
             }
+            return;
         }
-        //check for highest Node left Neighbor
-        if(upperBound == null && getLeftNode){
-            return children[occupancy - 1];
+
+        Node[] thiefChildren = ((InnerNode) thief).getChildren();
+        Node[] victimChildren = ((InnerNode) victim).getChildren();
+        if(stealFromRight){
+            thiefKeys[thiefOccupancy] = parentKeys[separator];
+            thiefChildren[thiefOccupancy + 1] = victimChildren[0];
+            parentKeys[separator] = victimKeys[0];
+            shiftLeft(victimKeys, victimChildren, victimOccupancy);
+        } else{
+            System.arraycopy(thiefKeys, 0, thiefKeys, 1, thiefOccupancy);
+            System.arraycopy(thiefChildren, 0, thiefChildren, 1, thiefOccupancy + 1);
+            thiefKeys[0] = parentKeys[separator];
+            thiefChildren[0] = victimChildren[victimOccupancy];
+            parentKeys[separator] = victimKeys[victimOccupancy - 1];
+            victimKeys[victimOccupancy - 1] = null;
+            victimChildren[victimOccupancy] = null;
+        }
+        //pending writes follow the moved child
+        InnerNode source = (InnerNode) victim;
+        if(source.hasMessages()){
+            Map<Integer, String> moved = stealFromRight
+                    ? source.getMessages().headMap(parentKeys[separator])
+                    : source.getMessages().tailMap(parentKeys[separator]);
+            ((InnerNode) thief).getMessages().putAll(moved);
+            moved.clear();
         }
-        
-        return null;
     }
 
-    private void sortClean(LeafNode node){
-        Integer []keys = node.getKeys();
-        String []values = node.getValues();
+    /**
+     * Merge the children at position and position + 1 into the left one and
+     * remove the separator between them from the parent. Inner nodes take
+     * the separator as the key between their children.
+     */
+    private void mergeNodes(InnerNode parent, int position){
+        Integer[] parentKeys = parent.getKeys();
+        Node[] children = parent.getChildren();
+        Node leftNode = children[position];
+        Node rightNode = children[position + 1];
+        parent.markDirty();
+        leftNode.markDirty();
+        Integer[] leftKeys = leftNode.getKeys();
+        Integer[] rightKeys = rightNode.getKeys();
+        int leftOccupancy = getNodeOccupancy(leftKeys);
+        int rightOccupancy = getNodeOccupancy(rightKeys);
+
+        if(leftNode instanceof LeafNode){
+            System.arraycopy(rightKeys, 0, leftKeys, leftOccupancy, rightOccupancy);
+            System.arraycopy(((LeafNode) rightNode).getValues(), 0,
+                             ((LeafNode) leftNode).getValues(), leftOccupancy, rightOccupancy);
+        } else{
+            InnerNode left = (InnerNode) leftNode;
+            InnerNode right = (InnerNode) rightNode;
+            leftKeys[leftOccupancy] = parentKeys[position];
+            System.arraycopy(rightKeys, 0, leftKeys, leftOccupancy + 1, rightOccupancy);
+            System.arraycopy(right.getChildren(), 0, left.getChildren(), leftOccupancy + 1,
+                             rightOccupancy + 1);
+            if(right.hasMessages()){
+                left.getMessages().putAll(right.takeMessages());
+            }
+        }
 
-        //create sorting list
-        List<Map.Entry<Integer, String>> keyValueList = new ArrayList<>();
+        //delete key and right node
+        shiftLeft(parentKeys, children, position, getNodeOccupancy(parentKeys));
+        releaseNode(rightNode);
+    }
 
-        //add all key value pairs to hashmap
-        for(int i=0; i<keys.length; i++){ 
-            keyValueList.add(new AbstractMap.SimpleImmutableEntry<>(keys[i], values[i]));
+    /**
+     * Restore the minimum occupancy of node after a delete. The node takes
+     * one entry from a sibling with more than {capacity/2} keys, the left one
+     * first, or else is merged with its right or left sibling. A merge
+     * removes a key from the parent, which is rebalanced in turn, and a root
+     * without keys is replaced by its only child. The only child of an
+     * append-split inner node is balanced through its nearest ancestor that
+     * has a sibling.
+     */
+    private void rebalance(Node node, Deque<InnerNode> parents){
+        InnerNode parent = parents.removeFirst();
+        Node[] children = parent.getChildren();
+        int parentOccupancy = getNodeOccupancy(parent.getKeys());
+        int position = findChildPosition(parent, node);
+        int leftOccupancy = position > 0 ? getNodeOccupancy(children[position - 1].getKeys()) : -1;
+        int rightOccupancy = position < parentOccupancy
+                ? getNodeOccupancy(children[position + 1].getKeys()) : -1;
+
+        if(leftOccupancy > capacity / 2){
+            stealFromNeighbor(parent, position, false);
+            return;
+        }
+        if(rightOccupancy > capacity / 2){
+            stealFromNeighbor(parent, position, true);
+            return;
         }
-        //sort list
-        Collections.sort(keyValueList, new Comparator<Map.Entry<Integer, String>>() {
-            public int compare(Map.Entry<Integer, String> kv1, Map.Entry<Integer, String> kv2) {
-                if(kv1.getKey() == null) return 1;
-                if(kv2.getKey() == null) return -1;
-                return kv1.getKey() > kv2.getKey()  ? 1 : -1;
+        if(rightOccupancy >= 0){
+            mergeNodes(parent, position);
+        } else if(leftOccupancy >= 0){
+            mergeNodes(parent, position - 1);
+        } else{
+            //only child of an append-split inner node, balance the nearest
+            //ancestor that has a sibling, which checks its children again
+            Node lonely = parent;
+            parent = null;
+            while(!parents.isEmpty() && parent == null){
+                InnerNode ancestor = parents.removeFirst();
+                if(getNodeOccupancy(ancestor.getKeys()) > 0){
+                    parent = ancestor;
+                } else{
+                    lonely = ancestor;
+                }
             }
-        });
-
-        for(int i=0; i<keys.length; i++){
-            keys[i] = keyValueList.get(i).getKey();
-            values[i] = keyValueList.get(i).getValue();
+            if(parent == null){
+                return;
+            }
+            fixUnderflow(parent, lonely);
         }
 
-        //extract keys and values and set keys and values
-        node.setKeys(keys);
-        node.setValues(values);
+        parentOccupancy = getNodeOccupancy(parent.getKeys());
+        if(parents.isEmpty()){
+            if(parentOccupancy == 0){
+                collapseRoot(parent);
+            }
+        } else if(parentOccupancy < capacity / 2){
+            rebalance(parent, parents);
+        }
     }
 
-    private void sortCleanInner(InnerNode node){
-        Integer []keys = node.getKeys();
-        Node []children = node.getChildren();
+    /**
+     * Replace a root without keys by its only child
+     */
+    private void collapseRoot(InnerNode oldRoot){
+        root = oldRoot.getChildren()[0];
+        if(oldRoot.hasMessages()){
+            TreeMap<Integer, String> messages = oldRoot.takeMessages();
+            if(root instanceof InnerNode){
+                //the root buffer is newer than the buffer of its child
+                ((InnerNode) root).getMessages().putAll(messages);
+            } else{
+                applyToLeaves(messages);
+            }
+        }
+        releaseNode(oldRoot);
+    }
 
-        Arrays.sort(keys, Comparator.nullsLast(null));
-        Arrays.sort(children, Comparator.nullsLast(null));
+    /**
+     * Remove the first key and child of an inner node
+     */
+    private static void shiftLeft(Integer[] keys, Node[] children, int occupancy){
+        System.arraycopy(keys, 1, keys, 0, occupancy - 1);
+        keys[occupancy - 1] = null;
+        System.arraycopy(children, 1, children, 0, occupancy);
+        children[occupancy] = null;
+    }
 
-        node.setKeys(keys);
-        node.setChildren(children);
+    /**
+     * Remove the key at position and the child right of it
+     */
+    private static void shiftLeft(Integer[] keys, Node[] children, int position, int occupancy){
+        System.arraycopy(keys, position + 1, keys, position, occupancy - position - 1);
+        keys[occupancy - 1] = null;
+        System.arraycopy(children, position + 2, children, position + 1, occupancy - position - 1);
+        children[occupancy] = null;
     }
 
-    // Function to find the index of a value in an array of Integer objects
-    private static int findIndex(Integer[] array, int target) {
-        for (int i = 0; i < array.length; i++) {
-            if (array[i] != null && array[i].equals(target)) {
-                return i;  // Value found, return its index
-            }
+    private String deleteFromLeafNode(Integer key, LeafNode node,
+                                      Deque<InnerNode> parents) {
+        appendLeaf = null;
+        int position = findPositionInLeafNode(key, node);
+        if(position == -1){
+            return null;
+        }
+        Integer[] leafKeys = node.getKeys();
+        String[] values = node.getValues();
+        String value = values[position];
+        deletePositionOfAssociatedArrays(position, leafKeys, values);
+        node.keysChanged();
+
+        //the root may hold less than capacity/2 keys
+        if(!parents.isEmpty() && getNodeOccupancy(leafKeys) < capacity / 2){
+            rebalance(node, parents);
         }
-        return -1;  // Value not found in the array
+        return value;
     }
 
-    private void replaceParentKey(InnerNode parent, Integer[] child, Integer newKey, boolean fromRightNode){
-        Integer[] keys = parent.getKeys();
-        Integer max = -1;
-        for(int i=0; i<child.length; i++){
-            if(child[i] != null && child[i] > max) max = child[i];
-        }
-        int position = -1;
-        for(int i=0; i<keys.length; i++){
-            if(keys[i] == null || keys[i] > max){
-                position = i;
-                break;
+    /**
+     * Append key behind the largest key of the tree without descending from
+     * the root, using the cached rightmost leaf and its parents. A full
+     * rightmost leaf is split asymmetrically: it stays full and the new leaf
+     * starts with the appended entry only.
+     * @return {false} if key is not larger than all keys in the tree.
+     */
+    private boolean appendToRightmostLeaf(int key, String value) {
+        if(appendLeaf == null){
+            appendParents = new ArrayDeque<>();
+            Node node = root;
+            while(node instanceof InnerNode){
+                InnerNode innerNode = (InnerNode) node;
+                appendParents.push(innerNode);
+                node = innerNode.getChildren()[getNodeOccupancy(innerNode.getKeys())];
             }
+            appendLeaf = (LeafNode) node;
         }
-        if(fromRightNode){
-            keys[position] = newKey;
-        } else{
-            keys[position] = newKey;
+        appendLeaf.markDirty();
+        for(InnerNode parent : appendParents){
+            parent.markDirty();
         }
-        parent.setKeys(keys);
-    }
-
-    private void mergeNodes(InnerNode parent, LeafNode leftNode, LeafNode rightNode){
-        //each node should contain >= capacity/2 keys
-        Integer[] parentKeys = parent.getKeys();
-        Integer[] leftKeys = leftNode.getKeys();
-        Integer[] rightKeys = rightNode.getKeys();
-
-        //get responsible Key
-        Integer max = -1;
-        for(int i=0; i<leftKeys.length; i++){
-            if(leftKeys[i] != null && leftKeys[i] > max) max = leftKeys[i];
+        Integer[] leafKeys = appendLeaf.getKeys();
+        int occupancy = getNodeOccupancy(leafKeys);
+        if(occupancy > 0 && key <= leafKeys[occupancy - 1]){
+            return false;
         }
-        int position = -1;
-        for(int i=0; i<parentKeys.length; i++){
-            if(parentKeys[i] == null || parentKeys[i] > max){
-                position = i;
-                break;
-            }
+        if(occupancy < this.capacity){
+            //keys stay sorted, no need to sort the leaf
+            leafKeys[occupancy] = key;
+            appendLeaf.getValues()[occupancy] = value;
+            return true;
         }
+        LeafNode newLeaf = newLeafNode();
+        newLeaf.getKeys()[0] = key;
+        newLeaf.getValues()[0] = value;
+        updateParentInsert(new ArrayDeque<>(appendParents), key, appendLeaf, newLeaf, true);
+        appendLeaf = null;
+        return true;
+    }
 
-        //combine nodes at left node
-        Integer[] newKeys = Arrays.copyOf(leftKeys, leftKeys.length + rightKeys.length);
-        System.arraycopy(rightKeys, 0, newKeys, leftKeys.length, rightKeys.length);
-
-        String[] leftValues = leftNode.getValues();
-        String[] rightValues = rightNode.getValues();
-        String[] newValues = Arrays.copyOf(leftValues, leftValues.length + rightValues.length);
-        System.arraycopy(rightValues, 0, newValues, leftValues.length, rightValues.length);
-
-        LeafNode tmpNode = new LeafNode(newKeys, newValues, 2 * leftKeys.length);
-        sortClean(tmpNode);
+    /**
+     * Delete key from the leaves, bypassing any write buffers
+     * @return The original value, or {null} if the key does not exist.
+     */
+    private String deleteFromTree(Integer key) {
+        Deque<InnerNode> parents = takePath();
+        LeafNode leafNode = findLeafNode(key, root, parents);
+        overflowValues.remove(key);
+        String value = deleteFromLeafNode(key, leafNode, parents);
+        returnPath(parents);
+        return value;
+    }
 
-        leftNode.setKeys(Arrays.copyOf(tmpNode.getKeys(), leftKeys.length));
-        leftNode.setValues(Arrays.copyOf(tmpNode.getValues(), leftKeys.length));
+    /**
+     * @return An empty deque for the parents of a leaf. Nested writes, like
+     * those of {collapseRoot}, each take their own.
+     */
+    private Deque<InnerNode> takePath() {
+        Deque<InnerNode> path = freePaths.poll();
+        return path != null ? path : new ArrayDeque<>();
+    }
 
+    private void returnPath(Deque<InnerNode> path) {
+        path.clear();
+        freePaths.push(path);
+    }
 
-        //delete key and right node
-        Node[] children = parent.getChildren();
-        int parentOccupancy = getNodeOccupancy(parentKeys);
-        if(parentOccupancy == 1){
-            //merged last existing leafnodes -> set root
-            this.root = leftNode;
-        }else{
-            parentKeys[position] = null;
-            children[position + 1] = null;
-            parent.setChildren(children);
-    
-            sortCleanInner(parent);
+    private String lookupInTree(Integer key) {
+        if(isWriteBuffered()){
+            return lookupBuffered(key);
         }
+        LeafNode leafNode = findLeafNode(key, root);
+        return lookupInLeafNode(key, leafNode);
     }
 
-    private void deletePositionOfAssociatedArrays(int position, Integer[] keys, String[] values){
-        //delete element
-        if(position != capacity - 1){
-            for(int i=position; i < capacity - 1; i++){
-                keys[i] = keys[i + 1];
-                values[i] = values[i + 1];
-            }
+    /**
+     * Called before every write to key
+     */
+    private void keyChanged(Integer key) {
+        modCount++;
+        if(lookupCache != null){
+            lookupCache.invalidate(key);
         }
-        keys[capacity - 1] = null;
-        values[capacity - 1] = null;
+        versions.recordWrite(key, versions.isActive() ? lookupInTree(key) : null);
     }
 
-    private void stealFromNeighbor(Deque<InnerNode> parents, LeafNode thief, LeafNode victim, int deletePosition, boolean stealfromRight){
-        Integer []ownKeys = thief.getKeys();
-        Integer []neighborKeys = victim.getKeys();
-
-        String []ownValues = thief.getValues();
-        String []neighborValues = victim.getValues();
+    private boolean isWriteBuffered() {
+        return writeBufferSize > 0 && root instanceof InnerNode;
+    }
 
-        Integer tiefPosition = -1;
-        Integer victemOccupancy = getNodeOccupancy(victim.getKeys());
-        Integer[] copyOldLowerKeys = null;
-        if(stealfromRight){
-            tiefPosition = 0;
-            copyOldLowerKeys = Arrays.copyOf(ownKeys, this.capacity);
-        } else{
-            tiefPosition = victemOccupancy - 1;
-            copyOldLowerKeys = Arrays.copyOf(neighborKeys, this.capacity);
+    /**
+     * Lookup key, newer writes buffered in inner nodes on the path win over
+     * older buffered writes and the leaves.
+     */
+    private String lookupBuffered(Integer key) {
+        Node node = root;
+        while(node instanceof InnerNode){
+            InnerNode innerNode = (InnerNode) node;
+            if(innerNode.hasMessages() && innerNode.getMessages().containsKey(key)){
+                return innerNode.getMessages().get(key);
+            }
+            node = innerNode.getChildren()[findChildIndex(key, innerNode)];
         }
-        //overwrite position with entry from neighbor
-        Integer transferedKey = neighborKeys[tiefPosition];
-        ownKeys[deletePosition] = neighborKeys[tiefPosition];
-        ownValues[deletePosition] = neighborValues[tiefPosition];
-
-        //remove value from neighbor
-        neighborKeys[tiefPosition] = null;
-        neighborValues[tiefPosition] = null;
-
-        //set all values
-        thief.setKeys(ownKeys);
-        thief.setValues(ownValues);
-        victim.setKeys(neighborKeys);
-        victim.setValues(neighborValues);
-
-        //sort new arrays
-        sortClean(thief);
-        sortClean(victim);
+        return lookupInLeafNode(key, (LeafNode) node);
+    }
 
-        //adapt parent
-        InnerNode parent = parents.getFirst();
-        Integer newParentKey = null;
-        if(stealfromRight){
-            newParentKey = neighborKeys[1];
-        } else{
-            newParentKey = transferedKey;
+    /**
+     * Add a pending write to the root buffer, {null} marks a delete.
+     */
+    private void bufferMessage(Integer key, String value) {
+        InnerNode rootNode = (InnerNode) root;
+        rootNode.getMessages().put(key, value);
+        if(rootNode.getMessages().size() > writeBufferSize){
+            flushMessages(rootNode, false);
         }
-        replaceParentKey(parent, copyOldLowerKeys, newParentKey, stealfromRight);
     }
 
-
-    private String deleteFromLeafNode(Integer key, LeafNode node,
-                                      Deque<InnerNode> parents) {
-        // TODO: delete value from leaf node (and propagate changes up)
-        Integer[] leafKeys = node.getKeys();
-        int capacity = this.capacity;
-        String value = null;
-
-        //get position of key
-        int position = -1;
-        for(int i=0; i < leafKeys.length; i++){
-            if(key.equals(leafKeys[i])){
-                position = i;
+    /**
+     * Move the buffered writes of node one level down. Children that are
+     * leaves get the writes applied, inner children buffer them and are
+     * flushed themselves once they are full (or always if {flushAll}).
+     */
+    private void flushMessages(InnerNode node, boolean flushAll) {
+        modCount++;
+        //take the messages first, splits below may restructure the node
+        TreeMap<Integer, String> messages = node.takeMessages();
+        Node[] children = Arrays.copyOf(node.getChildren(), node.getChildren().length);
+        if(children[0] instanceof LeafNode){
+            applyToLeaves(messages);
+            return;
+        }
+        for(Map.Entry<Integer, String> message : messages.entrySet()){
+            InnerNode child = (InnerNode) children[findChildIndex(message.getKey(), node)];
+            child.getMessages().put(message.getKey(), message.getValue());
+        }
+        for(Node child : children){
+            if(child == null){
                 break;
             }
+            InnerNode innerChild = (InnerNode) child;
+            if(flushAll || innerChild.getMessages().size() > writeBufferSize){
+                flushMessages(innerChild, flushAll);
+            }
         }
-        if(position == -1){
-            return null;
-        }
+    }
 
-        //get value of to be deleted key
-        String []values = node.getValues();
-        value = values[position];
+    /**
+     * Apply buffered writes to the leaves. The writes that fall into one
+     * leaf are found with a single descent and merged with its entries in
+     * one pass, the leaf is then split or rebalanced once.
+     */
+    private void applyToLeaves(TreeMap<Integer, String> messages) {
+        appendLeaf = null;
+        Iterator<Map.Entry<Integer, String>> it = messages.entrySet().iterator();
+        Map.Entry<Integer, String> next = it.hasNext() ? it.next() : null;
+        List<Map.Entry<Integer, String>> batch = new ArrayList<>();
+        while(next != null){
+            Deque<InnerNode> parents = takePath();
+            LeafNode leaf = findLeafNode(next.getKey(), root, parents);
+            Integer bound = upperBound(next.getKey(), parents);
+            batch.clear();
+            while(next != null && (bound == null || next.getKey() < bound)){
+                batch.add(next);
+                next = it.hasNext() ? it.next() : null;
+            }
+            applyToLeaf(leaf, batch, parents);
+            returnPath(parents);
+        }
+    }
 
-        //delete key
+    /**
+     * Merge the sorted writes into the leaf, a {null} value deletes the key.
+     */
+    private void applyToLeaf(LeafNode leaf, List<Map.Entry<Integer, String>> batch,
+                             Deque<InnerNode> parents) {
+        Integer[] leafKeys = leaf.getKeys();
+        String[] leafValues = leaf.getValues();
         int occupancy = getNodeOccupancy(leafKeys);
-        boolean operateOnRoot = parents.size() == 0;
-        if(occupancy >= (capacity / 2) + 1 || operateOnRoot){
-            //enough space in leaf available to just delete
-            deletePositionOfAssociatedArrays(position, leafKeys, values);
-        } else{
-            //not enough space so either steal or merge
-            InnerNode parent = parents.getFirst();
-            LeafNode leftNeighbor = (LeafNode) getNeighbor(parent, key, false);
-            LeafNode rightNeighbor = (LeafNode) getNeighbor(parent, key, true);
-            
-            Integer leftOccupancy = leftNeighbor == null ? 0 : getNodeOccupancy(leftNeighbor.getKeys());
-            Integer rightOccupancy = rightNeighbor == null ? 0 : getNodeOccupancy(rightNeighbor.getKeys());
-            if(leftOccupancy > (capacity / 2)){
-                //we can steal from left
-                stealFromNeighbor(parents, node, leftNeighbor, position, false);
-            } else if(rightOccupancy > (capacity / 2)){
-                stealFromNeighbor(parents, node, rightNeighbor, position, true);
-            } else if(rightNeighbor != null){
-                //merge with right neighbor
-                Integer []ownKeys = leafKeys;
-                String []ownValues = node.getValues();
-
-                //deleteElement
-                ownKeys[position] = null;
-                ownValues[position] = null;
-
-                //set deletion
-                node.setKeys(ownKeys);
-                node.setValues(ownValues);
-
-                //sort new array
-                sortClean(node);
-
-                //correct bp tree
-                mergeNodes(parent, node, rightNeighbor);
-
-            } else if(leftNeighbor != null){
-                //merge with left neighbor
-                Integer []ownKeys = leafKeys;
-                String []ownValues = node.getValues();
-
-                //deleteElement
-                ownKeys[position] = null;
-                ownValues[position] = null;
-
-                //set deletion
-                node.setKeys(ownKeys);
-                node.setValues(ownValues);
-
-                //sort new array
-                sortClean(node);
-
-                //correct bp tree
-                mergeNodes(parent, leftNeighbor, node);
+        List<Integer> keys = new ArrayList<>(occupancy + batch.size());
+        List<String> values = new ArrayList<>(occupancy + batch.size());
+        int i = 0;
+        for(Map.Entry<Integer, String> entry : batch){
+            int key = entry.getKey();
+            while(i < occupancy && leafKeys[i] < key){
+                keys.add(leafKeys[i]);
+                values.add(leafValues[i]);
+                i++;
+            }
+            if(i < occupancy && leafKeys[i] == key){
+                i++;
+            }
+            overflowValues.remove(key);
+            if(entry.getValue() != null){
+                keys.add(key);
+                values.add(entry.getValue());
             }
         }
-
-        return value;
+        for(; i < occupancy; i++){
+            keys.add(leafKeys[i]);
+            values.add(leafValues[i]);
+        }
+        if(keys.size() > capacity){
+            splitIntoLeaves(leaf, keys, values, parents);
+            return;
+        }
+        //the entries fit, rewrite the leaf in place
+        for(int j = 0; j < capacity; j++){
+            leafKeys[j] = j < keys.size() ? keys.get(j) : null;
+            leafValues[j] = j < keys.size() ? values.get(j) : null;
+        }
+        leaf.keysChanged();
+        if(parents.isEmpty() || keys.size() >= capacity / 2){
+            return;
+        }
+        InnerNode parent = parents.getFirst();
+        if(getNodeOccupancy(parent.getKeys()) == 0){
+            //no sibling in the parent, balanced through an ancestor
+            rebalance(leaf, parents);
+            return;
+        }
+        //the deletes may have taken several entries below the minimum
+        parents.removeFirst();
+        fixUnderflow(parent, leaf);
+        int parentOccupancy = getNodeOccupancy(parent.getKeys());
+        if(parents.isEmpty()){
+            if(parentOccupancy == 0){
+                collapseRoot(parent);
+            }
+        } else if(parentOccupancy < capacity / 2){
+            rebalance(parent, parents);
+        }
     }
 
     ///// Public API
@@ -537,17 +802,34 @@ public class BPlusTree {
      * @return The stored value, or {null} if the key does not exist.
      */
     public String lookup(Integer key) {
-        LeafNode leafNode = findLeafNode(key, root);
-        return lookupInLeafNode(key, leafNode);
+        record(TraceRecorder.Operation.LOOKUP, key, null, null);
+        if(lookupCache != null){
+            String value = lookupCache.get(key);
+            if(value == null){
+                value = lookupInTree(key);
+                if(value != null){
+                    lookupCache.put(key, value);
+                }
+            }
+            return value;
+        }
+        return lookupInTree(key);
     }
 
     /**
      * Insert the key/value pair into the B+ tree.
+     * An existing key keeps a single entry, its value is replaced or, in
+     * multi-value mode, added to the stored values.
      */
     public void insert(int key, String value) {
-        Deque<InnerNode> parents = new LinkedList<>();
-        LeafNode leafNode = findLeafNode(key, root, parents);
-        insertIntoLeafNode(key, value, leafNode, parents);
+        record(TraceRecorder.Operation.INSERT, key, null, value);
+        keyChanged(key);
+        if(isWriteBuffered()){
+            bufferMessage(key, value);
+        } else if(!appendOptimized || !appendToRightmostLeaf(key, value)){
+            putIntoTree(key, value, true);
+        }
+        publish(ChangeEvent.Type.INSERT, key, null, value);
     }
 
     /**
@@ -555,16 +837,1143 @@ public class BPlusTree {
      * @return The original value, or {null} if the key does not exist.
      */
     public String delete(Integer key) {
-        Deque<InnerNode> parents = new LinkedList<>();
-        LeafNode leafNode = findLeafNode(key, root, parents);
-        return deleteFromLeafNode(key, leafNode, parents);
+        record(TraceRecorder.Operation.DELETE, key, null, null);
+        keyChanged(key);
+        String value;
+        if(isWriteBuffered()){
+            value = lookupBuffered(key);
+            if(value != null){
+                bufferMessage(key, null);
+            }
+        } else{
+            value = deleteFromTree(key);
+        }
+        if(value != null){
+            publish(ChangeEvent.Type.DELETE, key, null, null);
+        }
+        return value;
     }
 
-    ///// Leave these methods unchanged
-
-    private int capacity = 0;
+    /**
+     * Iterate over the key/value pairs with {from <= key < to} in key order.
+     * A {null} bound leaves that side of the range open. In multi-value mode
+     * only the first value of each key is returned.
+     */
+    public Iterator<Map.Entry<Integer, String>> scan(Integer from, Integer to) {
+        record(TraceRecorder.Operation.SCAN, from, to, null);
+        return iterate(from, to);
+    }
 
-    private Node root;
+    /**
+     * Iterate over the leaves like {scan}, without recording the scan. Used
+     * for reads the caller did not issue, so they stay out of the trace.
+     */
+    Iterator<Map.Entry<Integer, String>> iterate(Integer from, Integer to) {
+        flushWriteBuffers();
+        return new BPlusTreeIterator(root, from, to);
+    }
+
+    ///// Duplicate keys
+
+    /**
+     * Insert the key/value pair, replacing all values stored under the key.
+     * @return The replaced value, or {null} if the key did not exist.
+     */
+    public String upsert(int key, String value) {
+        record(TraceRecorder.Operation.UPSERT, key, null, value);
+        keyChanged(key);
+        String oldValue;
+        if(isWriteBuffered()){
+            oldValue = lookupBuffered(key);
+            bufferMessage(key, value);
+        } else{
+            oldValue = putIntoTree(key, value, false);
+        }
+        publish(ChangeEvent.Type.UPSERT, key, null, value);
+        return oldValue;
+    }
+
+    /**
+     * Lookup all values stored under the given key, in insertion order.
+     * @return The stored values, or an empty list if the key does not exist.
+     */
+    public List<String> lookupAll(Integer key) {
+        String value = lookup(key);
+        if(value == null){
+            return Collections.emptyList();
+        }
+        List<String> values = new ArrayList<>();
+        values.add(value);
+        values.addAll(overflowValues.getOrDefault(key, Collections.emptyList()));
+        return values;
+    }
+
+    /**
+     * Delete a single value stored under the given key. The key is removed
+     * together with its last value.
+     * @return {true} if the value was stored under the key.
+     */
+    public boolean delete(Integer key, String value) {
+        record(TraceRecorder.Operation.DELETE_VALUE, key, null, value);
+        keyChanged(key);
+        flushWriteBuffers();
+        Deque<InnerNode> parents = takePath();
+        LeafNode leafNode = findLeafNode(key, root, parents);
+        int position = findPositionInLeafNode(key, leafNode);
+        if(position == -1){
+            returnPath(parents);
+            return false;
+        }
+        List<String> overflow = overflowValues.get(key);
+        String[] leafValues = leafNode.getValues();
+        if(!value.equals(leafValues[position])){
+            if(overflow == null || !overflow.remove(value)){
+                returnPath(parents);
+                return false;
+            }
+        } else if(overflow == null){
+            deleteFromLeafNode(key, leafNode, parents);
+        } else{
+            //first overflow value moves into the leaf
+            leafValues[position] = overflow.remove(0);
+        }
+        if(overflow != null && overflow.isEmpty()){
+            overflowValues.remove(key);
+        }
+        returnPath(parents);
+        publish(ChangeEvent.Type.DELETE_VALUE, key, null, value);
+        return true;
+    }
+
+    /**
+     * In multi-value mode, {insert} adds the value to the values already
+     * stored under the key instead of replacing them. The first value is
+     * kept in the leaf, all others in a per-key overflow list, so duplicates
+     * never take up leaf slots.
+     */
+    public void setMultiValued(boolean multiValued) {
+        if(multiValued && writeBufferSize > 0){
+            throw new IllegalStateException(
+                    "Multi-value mode does not support write buffering");
+        }
+        if(!multiValued && !overflowValues.isEmpty()){
+            throw new IllegalStateException(
+                    "Tree still stores multiple values per key");
+        }
+        this.multiValued = multiValued;
+    }
+
+    public boolean isMultiValued() {
+        return multiValued;
+    }
+
+    ///// Atomic updates
+
+    /**
+     * Replace the value stored under key by {function(key, value)}, where
+     * value is {null} if the key does not exist. A {null} result deletes
+     * the key. The leaf is found once and updated in place, only a new key
+     * may split it. As with {upsert}, all values of a key in multi-value
+     * mode are replaced.
+     * @return The new value, or {null} if the key does not exist afterwards.
+     */
+    public String compute(int key, BiFunction<Integer, String, String> function) {
+        return updateInTree(key, function);
+    }
+
+    /**
+     * Store {function(key)} under key if the key does not exist and the
+     * result is not {null}.
+     * @return The stored or the new value.
+     */
+    public String computeIfAbsent(int key, Function<Integer, String> function) {
+        return updateInTree(key, (k, value) -> value != null ? value : function.apply(k));
+    }
+
+    /**
+     * Store value under key if the key does not exist.
+     * @return The stored value, or {null} if value was added.
+     */
+    public String putIfAbsent(int key, String value) {
+        String[] stored = new String[1];
+        updateInTree(key, (k, oldValue) -> {
+            stored[0] = oldValue;
+            return oldValue != null ? oldValue : value;
+        });
+        return stored[0];
+    }
+
+    /**
+     * Replace the value stored under key only if it equals expected.
+     * @return {true} if the value was replaced.
+     */
+    public boolean replace(int key, String expected, String value) {
+        boolean[] replaced = new boolean[1];
+        updateInTree(key, (k, oldValue) -> {
+            replaced[0] = oldValue != null && oldValue.equals(expected);
+            return replaced[0] ? value : oldValue;
+        });
+        return replaced[0];
+    }
+
+    /**
+     * Store {function(key, value)} under key with a single descent. A value
+     * equal to the stored one is not written at all, so it neither counts
+     * as a change nor is published.
+     * @return The new value.
+     */
+    private String updateInTree(int key, BiFunction<Integer, String, String> function) {
+        if(isWriteBuffered()){
+            String oldValue = lookupBuffered(key);
+            String newValue = function.apply(key, oldValue);
+            record(TraceRecorder.Operation.COMPUTE, key, null, newValue);
+            if(!Objects.equals(newValue, oldValue)){
+                keyChanged(key);
+                bufferMessage(key, newValue);
+                publishUpdate(key, newValue);
+            }
+            return newValue;
+        }
+        Deque<InnerNode> parents = takePath();
+        LeafNode leafNode = findLeafNode(key, root, parents);
+        int position = findPositionInLeafNode(key, leafNode);
+        String oldValue = position == -1 ? null : leafNode.getValues()[position];
+        String newValue = function.apply(key, oldValue);
+        record(TraceRecorder.Operation.COMPUTE, key, null, newValue);
+        if(Objects.equals(newValue, oldValue)){
+            returnPath(parents);
+            return newValue;
+        }
+        keyChanged(key);
+        overflowValues.remove(key);
+        if(oldValue == null){
+            insertIntoLeafNode(key, newValue, leafNode, parents);
+        } else if(newValue == null){
+            deleteFromLeafNode(key, leafNode, parents);
+        } else{
+            //replace in place, order of the leaf does not change
+            leafNode.getValues()[position] = newValue;
+        }
+        returnPath(parents);
+        publishUpdate(key, newValue);
+        return newValue;
+    }
+
+    private void publishUpdate(int key, String newValue) {
+        if(newValue == null){
+            publish(ChangeEvent.Type.DELETE, key, null, null);
+        } else{
+            publish(ChangeEvent.Type.UPSERT, key, null, newValue);
+        }
+    }
+
+    ///// Range delete
+
+    /**
+     * Delete all key/value pairs with {from <= key < to}, a {null} bound
+     * leaves that side of the range open. Subtrees that lie completely
+     * inside the range are unlinked from their parents without visiting
+     * them, only the nodes on the paths to the two boundary leaves are
+     * trimmed and rebalanced afterwards.
+     */
+    public void deleteRange(Integer from, Integer to) {
+        record(TraceRecorder.Operation.DELETE_RANGE, from, to, null);
+        if(from != null && to != null && from >= to){
+            return;
+        }
+        flushWriteBuffers();
+        rangeChanged(from, to);
+        appendLeaf = null;
+        if(from == null && to == null){
+            root = new LeafNode(capacity);
+        } else{
+            cutRange(root, from, to);
+            fixRoot();
+        }
+        publish(ChangeEvent.Type.DELETE_RANGE, from, to, null);
+    }
+
+    /**
+     * Fix the children of the root and replace a root without keys by its
+     * only child until the root holds keys or is a leaf.
+     */
+    private void fixRoot() {
+        while(root instanceof InnerNode){
+            fixChildren(root);
+            if(getNodeOccupancy(root.getKeys()) > 0){
+                break;
+            }
+            collapseRoot((InnerNode) root);
+        }
+    }
+
+    /**
+     * Called before all keys in the range are deleted
+     */
+    private void rangeChanged(Integer from, Integer to) {
+        modCount++;
+        if(lookupCache != null){
+            lookupCache.clear();
+        }
+        if(versions.isActive()){
+            //snapshots need the old value of every deleted key
+            Iterator<Map.Entry<Integer, String>> entries = iterate(from, to);
+            while(entries.hasNext()){
+                Map.Entry<Integer, String> entry = entries.next();
+                versions.recordWrite(entry.getKey(), entry.getValue());
+            }
+        }
+        if(!overflowValues.isEmpty()){
+            overflowValues.keySet().removeIf(
+                    key -> (from == null || key >= from) && (to == null || key < to));
+        }
+    }
+
+    /**
+     * Delete the range from the subtree of node. Afterwards all nodes below
+     * node hold at least {capacity/2} keys again, node itself may hold less.
+     */
+    private void cutRange(Node node, Integer from, Integer to) {
+        node.markDirty();
+        Integer[] keys = node.getKeys();
+        int occupancy = getNodeOccupancy(keys);
+        if(node instanceof LeafNode){
+            String[] values = ((LeafNode) node).getValues();
+            int kept = 0;
+            for(int i = 0; i < occupancy; i++){
+                boolean inRange = (from == null || keys[i] >= from) && (to == null || keys[i] < to);
+                if(!inRange){
+                    keys[kept] = keys[i];
+                    values[kept] = values[i];
+                    kept++;
+                }
+            }
+            Arrays.fill(keys, kept, occupancy, null);
+            Arrays.fill(values, kept, occupancy, null);
+            return;
+        }
+
+        InnerNode innerNode = (InnerNode) node;
+        Node[] children = innerNode.getChildren();
+        //children strictly between first and last lie completely inside the range
+        int first = from == null ? -1 : findChildIndex(from, innerNode);
+        int last = to == null ? occupancy + 1 : findChildIndex(to, innerNode);
+        if(first == last){
+            cutRange(children[first], from, to);
+            fixUnderflow(innerNode, children[first]);
+            return;
+        }
+
+        //unlink them with the keys between them, a child kept on both sides
+        //stays separated by keys[last - 1]
+        int keptKeys = from == null ? 0 : first;
+        int keyTail = from == null ? last : to == null ? occupancy : last - 1;
+        int newOccupancy = keptKeys + (occupancy - keyTail);
+        System.arraycopy(keys, keyTail, keys, keptKeys, occupancy - keyTail);
+        Arrays.fill(keys, newOccupancy, occupancy, null);
+        System.arraycopy(children, last, children, first + 1, occupancy + 1 - last);
+        Arrays.fill(children, newOccupancy + 1, occupancy + 1, null);
+
+        Node left = from == null ? null : children[first];
+        Node right = to == null ? null : children[first + 1];
+        if(left != null){
+            cutRange(left, from, null);
+        }
+        if(right != null){
+            cutRange(right, null, to);
+        }
+        if(left != null){
+            fixUnderflow(innerNode, left);
+        }
+        if(right != null){
+            fixUnderflow(innerNode, right);
+        }
+    }
+
+    /**
+     * Merge an underfull child with a sibling if both fit into one node and
+     * check the merged node again, otherwise move entries over from the
+     * sibling until the child holds {capacity/2} keys. A child that was the
+     * only child of its parent could not be fixed before, so the children
+     * of the resulting node are checked again.
+     * @return {true} if the tree was changed.
+     */
+    private boolean fixUnderflow(InnerNode parent, Node child) {
+        boolean changed = false;
+        while(true){
+            int position = findChildPosition(parent, child);
+            if(position == -1 || getNodeOccupancy(parent.getKeys()) == 0){
+                //merged away already, or no sibling to balance with
+                return changed;
+            }
+            int occupancy = getNodeOccupancy(child.getKeys());
+            if(occupancy >= capacity / 2){
+                return changed;
+            }
+            changed = true;
+            boolean fromRight = position == 0;
+            Node sibling = parent.getChildren()[fromRight ? position + 1 : position - 1];
+            int combined = occupancy + getNodeOccupancy(sibling.getKeys());
+            if(child instanceof InnerNode){
+                //the separator moves down into the merged node
+                combined++;
+            }
+            if(combined > capacity){
+                while(getNodeOccupancy(child.getKeys()) < capacity / 2){
+                    stealFromNeighbor(parent, findChildPosition(parent, child), fromRight);
+                }
+            } else{
+                int merged = fromRight ? position : position - 1;
+                mergeNodes(parent, merged);
+                child = parent.getChildren()[merged];
+            }
+            //merging its children may leave the child underfull again
+            fixChildren(child);
+        }
+    }
+
+    /**
+     * Fix all underfull children of node until none of them can be fixed.
+     */
+    private void fixChildren(Node node) {
+        if(!(node instanceof InnerNode)){
+            return;
+        }
+        InnerNode innerNode = (InnerNode) node;
+        boolean changed = true;
+        while(changed){
+            changed = false;
+            Node[] children = innerNode.getChildren();
+            for(int i = 0; i <= getNodeOccupancy(innerNode.getKeys()) && !changed; i++){
+                changed = fixUnderflow(innerNode, children[i]);
+            }
+        }
+    }
+
+    ///// Sorted merge
+
+    /**
+     * Insert a batch of key/value pairs given in ascending key order, a
+     * later pair replaces an earlier one with the same key. Instead of one
+     * descent per key, the batch is walked alongside the leaves: all pairs
+     * that fall into a leaf are merged with its entries in one go, and only
+     * if they do not fit, the leaf is split into as many leaves as needed.
+     * Existing keys behave as in {insert}.
+     */
+    public void mergeSorted(Iterator<Map.Entry<Integer, String>> entries) {
+        flushWriteBuffers();
+        appendLeaf = null;
+        Map.Entry<Integer, String> next = entries.hasNext() ? entries.next() : null;
+        Integer previous = null;
+        while(next != null){
+            Integer bound = upperBound(next.getKey());
+
+            //take the pairs of this leaf, but not too many at once
+            List<Map.Entry<Integer, String>> batch = new ArrayList<>();
+            while(next != null && (bound == null || next.getKey() < bound) &&
+                    batch.size() < capacity * capacity){
+                if(previous != null && next.getKey() < previous){
+                    throw new IllegalArgumentException(
+                            "Key " + next.getKey() + " follows " + previous);
+                }
+                previous = next.getKey();
+                record(TraceRecorder.Operation.INSERT, next.getKey(), null, next.getValue());
+                batch.add(next);
+                next = entries.hasNext() ? entries.next() : null;
+            }
+            //old values are looked up before the descent marks the path dirty
+            for(Map.Entry<Integer, String> entry : batch){
+                keyChanged(entry.getKey());
+            }
+            Deque<InnerNode> parents = new ArrayDeque<>();
+            LeafNode leaf = findLeafNode(batch.get(0).getKey(), root, parents);
+            mergeIntoLeaf(leaf, batch, parents);
+            for(Map.Entry<Integer, String> entry : batch){
+                publish(ChangeEvent.Type.INSERT, entry.getKey(), null, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return The smallest key of the right neighbor of the leaf that holds
+     * key, or {null} for the rightmost leaf. Reads the path only, without
+     * marking it dirty.
+     */
+    private Integer upperBound(Integer key){
+        Integer bound = null;
+        Node node = root;
+        while(node instanceof InnerNode){
+            InnerNode innerNode = (InnerNode) node;
+            int index = findChildIndex(key, innerNode);
+            if(index < getNodeOccupancy(innerNode.getKeys())){
+                bound = innerNode.getKeys()[index];
+            }
+            node = innerNode.getChildren()[index];
+        }
+        return bound;
+    }
+
+    /**
+     * @return The smallest key of the leaf's right neighbor, or {null} for
+     * the rightmost leaf.
+     */
+    private Integer upperBound(Integer key, Deque<InnerNode> parents){
+        for(InnerNode parent : parents){
+            int index = findChildIndex(key, parent);
+            if(index < getNodeOccupancy(parent.getKeys())){
+                return parent.getKeys()[index];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Merge the sorted pairs into the leaf, splitting it into evenly filled
+     * leaves if the entries do not fit.
+     */
+    private void mergeIntoLeaf(LeafNode leaf, List<Map.Entry<Integer, String>> batch,
+                               Deque<InnerNode> parents){
+        Integer[] leafKeys = leaf.getKeys();
+        String[] leafValues = leaf.getValues();
+        int occupancy = getNodeOccupancy(leafKeys);
+        List<Integer> keys = new ArrayList<>(occupancy + batch.size());
+        List<String> values = new ArrayList<>(occupancy + batch.size());
+        int i = 0;
+        for(Map.Entry<Integer, String> entry : batch){
+            int key = entry.getKey();
+            while(i < occupancy && leafKeys[i] <= key){
+                keys.add(leafKeys[i]);
+                values.add(leafValues[i]);
+                i++;
+            }
+            int last = keys.size() - 1;
+            if(last < 0 || keys.get(last) != key){
+                keys.add(key);
+                values.add(entry.getValue());
+            } else if(multiValued){
+                overflowValues.computeIfAbsent(key, k -> new ArrayList<>()).add(entry.getValue());
+            } else{
+                //existing key or repeated key of the batch
+                values.set(last, entry.getValue());
+                overflowValues.remove(key);
+            }
+        }
+        for(; i < occupancy; i++){
+            keys.add(leafKeys[i]);
+            values.add(leafValues[i]);
+        }
+        splitIntoLeaves(leaf, keys, values, parents);
+    }
+
+    /**
+     * Distribute the sorted entries evenly over the leaf and as many new
+     * right neighbors as needed.
+     */
+    private void splitIntoLeaves(LeafNode leaf, List<Integer> keys, List<String> values,
+                                 Deque<InnerNode> parents){
+        //count > capacity gives at least capacity/2 entries per leaf
+        int count = keys.size();
+        int leaves = (count + capacity - 1) / capacity;
+        LeafNode left = leaf;
+        for(int n = 0; n < leaves; n++){
+            int from = (int) ((long) count * n / leaves);
+            int to = (int) ((long) count * (n + 1) / leaves);
+            Integer[] newKeys = new Integer[capacity];
+            String[] newValues = new String[capacity];
+            for(int j = from; j < to; j++){
+                newKeys[j - from] = keys.get(j);
+                newValues[j - from] = values.get(j);
+            }
+            if(n == 0){
+                leaf.setKeys(newKeys);
+                leaf.setValues(newValues);
+                continue;
+            }
+            LeafNode newLeaf = new LeafNode(newKeys, newValues, capacity);
+            if(n > 1){
+                //an earlier split may have moved the left leaf to a new parent
+                parents = new ArrayDeque<>();
+                findLeafNode(keys.get(from - 1), root, parents);
+            }
+            updateParentInsert(parents, newKeys[0], left, newLeaf);
+            left = newLeaf;
+        }
+    }
+
+    ///// Split and concatenate
+
+    /**
+     * Move all key/value pairs with {key >= splitKey} into a new tree, this
+     * tree keeps the smaller keys. Only the nodes on the path to {splitKey}
+     * are cut in two, all other nodes are moved to the new tree as they are,
+     * and the two cut paths are rebalanced afterwards.
+     * @return The tree with the keys starting at {splitKey}.
+     */
+    public BPlusTree splitAt(int splitKey) {
+        flushWriteBuffers();
+        appendLeaf = null;
+        BPlusTree tree = new BPlusTree(capacity);
+        tree.multiValued = multiValued;
+        tree.appendOptimized = appendOptimized;
+        for(Map.Entry<Integer, List<String>> entry : overflowValues.entrySet()){
+            if(entry.getKey() >= splitKey){
+                tree.overflowValues.put(entry.getKey(), entry.getValue());
+            }
+        }
+        rangeChanged(splitKey, null);
+        tree.root = splitNode(root, splitKey);
+        fixRoot();
+        tree.fixRoot();
+        publish(ChangeEvent.Type.DELETE_RANGE, splitKey, null, null);
+        return tree;
+    }
+
+    /**
+     * Cut node in two at key, node keeps the smaller keys.
+     * @return The new node with the keys starting at key.
+     */
+    private Node splitNode(Node node, int key) {
+        node.markDirty();
+        Integer[] keys = node.getKeys();
+        int occupancy = getNodeOccupancy(keys);
+        if(node instanceof LeafNode){
+            String[] values = ((LeafNode) node).getValues();
+            int position = 0;
+            while(position < occupancy && keys[position] < key){
+                position++;
+            }
+            Integer[] rightKeys = new Integer[capacity];
+            String[] rightValues = new String[capacity];
+            System.arraycopy(keys, position, rightKeys, 0, occupancy - position);
+            System.arraycopy(values, position, rightValues, 0, occupancy - position);
+            Arrays.fill(keys, position, occupancy, null);
+            Arrays.fill(values, position, occupancy, null);
+            return new LeafNode(rightKeys, rightValues, capacity);
+        }
+
+        InnerNode innerNode = (InnerNode) node;
+        Node[] children = innerNode.getChildren();
+        int index = findChildIndex(key, innerNode);
+        Node rightChild = splitNode(children[index], key);
+        //keys[index] separates the right part of the child from its sibling
+        Integer[] rightKeys = new Integer[capacity];
+        Node[] rightChildren = new Node[capacity + 1];
+        System.arraycopy(keys, index, rightKeys, 0, occupancy - index);
+        rightChildren[0] = rightChild;
+        System.arraycopy(children, index + 1, rightChildren, 1, occupancy - index);
+        Arrays.fill(keys, index, occupancy, null);
+        Arrays.fill(children, index + 1, occupancy + 1, null);
+        InnerNode right = new InnerNode(rightKeys, rightChildren, capacity);
+
+        fixUnderflow(innerNode, children[index]);
+        fixUnderflow(right, rightChild);
+        return right;
+    }
+
+    /**
+     * Combine two trees of the same capacity where all keys of left are
+     * smaller than all keys of right. The lower tree is hung into the
+     * outer edge of the higher tree at the matching height, so only the
+     * nodes on that edge change. Both trees are empty afterwards.
+     * @return The tree holding the key/value pairs of both trees.
+     */
+    public static BPlusTree concat(BPlusTree left, BPlusTree right) {
+        if(left.capacity != right.capacity){
+            throw new IllegalArgumentException(
+                    "Capacities " + left.capacity + " and " + right.capacity + " differ");
+        }
+        left.flushWriteBuffers();
+        right.flushWriteBuffers();
+        Integer leftMax = left.edgeKey(false);
+        Integer rightMin = right.edgeKey(true);
+        if(leftMax != null && rightMin != null && leftMax >= rightMin){
+            throw new IllegalArgumentException(
+                    "Left tree holds key " + leftMax + " which is not smaller than " + rightMin);
+        }
+        BPlusTree tree = new BPlusTree(left.capacity);
+        tree.multiValued = left.multiValued;
+        //the right edge comes from the right tree
+        tree.appendOptimized = right.appendOptimized;
+        tree.overflowValues.putAll(left.overflowValues);
+        tree.overflowValues.putAll(right.overflowValues);
+        Node leftRoot = left.root;
+        Node rightRoot = right.root;
+        left.rangeChanged(null, null);
+        right.rangeChanged(null, null);
+        left.root = new LeafNode(left.capacity);
+        right.root = new LeafNode(right.capacity);
+        left.publish(ChangeEvent.Type.DELETE_RANGE, null, null, null);
+        right.publish(ChangeEvent.Type.DELETE_RANGE, null, null, null);
+        if(leftMax == null || rightMin == null){
+            tree.root = leftMax == null ? rightRoot : leftRoot;
+            return tree;
+        }
+
+        int leftHeight = height(leftRoot);
+        int rightHeight = height(rightRoot);
+        if(leftHeight == rightHeight){
+            tree.root = leftRoot;
+            Deque<InnerNode> parents = new ArrayDeque<>();
+            tree.updateParentInsert(parents, rightMin, leftRoot, rightRoot);
+        } else if(leftHeight > rightHeight){
+            //hang the right tree behind the right edge of the left tree
+            tree.root = leftRoot;
+            Deque<InnerNode> parents = new ArrayDeque<>();
+            Node node = leftRoot;
+            for(int level = leftHeight; level > rightHeight; level--){
+                InnerNode innerNode = (InnerNode) node;
+                innerNode.markDirty();
+                parents.push(innerNode);
+                node = innerNode.getChildren()[tree.getNodeOccupancy(innerNode.getKeys())];
+            }
+            tree.updateParentInsert(parents, rightMin, node, rightRoot);
+        } else{
+            //hang the left tree in front of the left edge of the right tree
+            tree.root = rightRoot;
+            Deque<InnerNode> parents = new ArrayDeque<>();
+            Node node = rightRoot;
+            for(int level = rightHeight; level > leftHeight; level--){
+                InnerNode innerNode = (InnerNode) node;
+                innerNode.markDirty();
+                parents.push(innerNode);
+                node = innerNode.getChildren()[0];
+            }
+            parents.getFirst().getChildren()[0] = leftRoot;
+            tree.updateParentInsert(parents, rightMin, leftRoot, node);
+        }
+        //both former roots may hold too few keys, and so may the right edge
+        //of an append-optimized left tree
+        tree.fixPath(leftMax);
+        tree.fixPath(rightMin);
+        return tree;
+    }
+
+    /**
+     * @return The smallest or largest key of the tree, or {null} if the
+     * tree is empty.
+     */
+    private Integer edgeKey(boolean smallest) {
+        Node node = root;
+        while(node instanceof InnerNode){
+            Node[] children = ((InnerNode) node).getChildren();
+            node = children[smallest ? 0 : getNodeOccupancy(node.getKeys())];
+        }
+        LeafNode leaf = (LeafNode) node;
+        if(smallest || leaf.keyAt(0) == null){
+            return leaf.keyAt(0);
+        }
+        int last = 0;
+        while(leaf.keyAt(last + 1) != null){
+            last++;
+        }
+        return leaf.keyAt(last);
+    }
+
+    private static int height(Node node) {
+        int height = 0;
+        while(node instanceof InnerNode){
+            node = ((InnerNode) node).getChildren()[0];
+            height++;
+        }
+        return height;
+    }
+
+    /**
+     * Rebalance the nodes on the path to key bottom-up.
+     */
+    private void fixPath(Integer key) {
+        Deque<InnerNode> parents = new ArrayDeque<>();
+        Node child = findLeafNode(key, root, parents);
+        for(InnerNode parent : parents){
+            fixUnderflow(parent, child);
+            child = parent;
+        }
+        fixRoot();
+    }
+
+    ///// Merkle hashes
+
+    /**
+     * Every node keeps a hash over its entries or over its separators and
+     * the hashes of its children. Hashes are computed on first use and
+     * dropped by every write to the subtree, so they cost nothing until
+     * trees are compared. Buffered writes are flushed first. In multi-value
+     * mode only the first value of each key is compared, as in {scan}.
+     * @return The keys stored in only one of the trees or with different
+     * values, in ascending order.
+     */
+    public List<Integer> diff(BPlusTree other) {
+        flushWriteBuffers();
+        other.flushWriteBuffers();
+        return new BPlusTreeDiff().diff(root, other.root);
+    }
+
+    /**
+     * @return The hash of the whole tree, equal for trees of the same shape
+     * holding the same entries.
+     */
+    public long getRootHash() {
+        flushWriteBuffers();
+        return root.hash();
+    }
+
+    ///// Change feed
+
+    /**
+     * Publish every write to the feed, or stop publishing with {null}.
+     * Events are published after the write took place, in the order of the
+     * writes. {mergeSorted} publishes one insert per pair, {splitAt} and
+     * {concat} publish the removal of the keys that left the tree; the
+     * trees they return start without a feed.
+     */
+    public void setChangeFeed(ChangeFeed changeFeed) {
+        this.changeFeed = changeFeed;
+    }
+
+    public ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    private void publish(ChangeEvent.Type type, Integer key, Integer to, String value) {
+        if(changeFeed != null){
+            changeFeed.publish(type, key, to, value);
+        }
+    }
+
+    ///// Trace recording
+
+    /**
+     * Record every operation to the recorder, or stop recording with
+     * {null}. Operations are recorded when they are called, also if they
+     * turn out to change nothing. Snapshot reads are recorded as plain
+     * lookups and scans. {mergeSorted} records one insert per
+     * pair, the {compute} family records the new value; {splitAt} and
+     * {concat} are not recorded.
+     */
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+        this.traceRecorder = traceRecorder;
+    }
+
+    public TraceRecorder getTraceRecorder() {
+        return traceRecorder;
+    }
+
+    private void record(TraceRecorder.Operation operation, Integer key, Integer to,
+                        String value) {
+        if(traceRecorder != null){
+            traceRecorder.record(operation, key, to, value);
+        }
+    }
+
+    ///// Write buffering
+
+    /**
+     * In write-buffered mode, {insert}, {upsert} and {delete} only add a
+     * message to a buffer in the root. A buffer holding more than
+     * {writeBufferSize} messages is flushed one level down in a single
+     * batch, so a random write touches the leaves only once per batch.
+     * {lookup} consults the buffers on its path.
+     * <p>
+     * A size of {0} flushes all buffers and disables the mode.
+     */
+    public void setWriteBufferSize(int writeBufferSize) {
+        if(writeBufferSize > 0 && multiValued){
+            throw new IllegalStateException(
+                    "Write buffering does not support multi-value mode");
+        }
+        flushWriteBuffers();
+        this.writeBufferSize = writeBufferSize;
+    }
+
+    public int getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    /**
+     * Apply all buffered writes to the leaves.
+     */
+    public void flushWriteBuffers() {
+        //merges caused by buffered deletes can move writes into nodes that were already flushed
+        while(isWriteBuffered() && hasMessages(root)){
+            flushMessages((InnerNode) root, true);
+        }
+    }
+
+    private boolean hasMessages(Node node) {
+        if(!(node instanceof InnerNode)){
+            return false;
+        }
+        InnerNode innerNode = (InnerNode) node;
+        if(innerNode.hasMessages()){
+            return true;
+        }
+        Node[] children = innerNode.getChildren();
+        for(int i = 0; i <= getNodeOccupancy(innerNode.getKeys()); i++){
+            if(hasMessages(children[i])){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    ///// Lookup cache
+
+    /**
+     * Put a cache of key/value pairs in front of the tree, or remove it with
+     * {null}. Values found by {lookup} are added to the cache, every write
+     * invalidates the cached value of its key. Splits and merges only move
+     * entries between nodes, so they leave the cache untouched.
+     */
+    public void setLookupCache(LookupCache lookupCache) {
+        if(lookupCache != null){
+            lookupCache.clear();
+        }
+        this.lookupCache = lookupCache;
+    }
+
+    public LookupCache getLookupCache() {
+        return lookupCache;
+    }
+
+    ///// Append optimization
+
+    /**
+     * In append-optimized mode, {insert} detects keys larger than all keys in
+     * the tree and adds them to the cached rightmost leaf without a descent.
+     * Rightmost nodes that overflow this way stay full instead of being split
+     * in half, so auto-increment keys leave completely filled nodes behind.
+     * In exchange, the rightmost node of each level may hold less than
+     * {capacity/2} keys.
+     */
+    public void setAppendOptimized(boolean appendOptimized) {
+        this.appendOptimized = appendOptimized;
+        this.appendLeaf = null;
+    }
+
+    public boolean isAppendOptimized() {
+        return appendOptimized;
+    }
+
+    ///// Compressed leaves
+
+    /**
+     * Replace every leaf by a {CompressedLeafNode}. Lookups and scans read
+     * the compressed leaves directly, the first write to a leaf decodes it
+     * again. Meant for cold trees that are mostly read.
+     */
+    public void compressLeaves() {
+        modCount++;
+        appendLeaf = null;
+        if(root instanceof LeafNode){
+            root = CompressedLeafNode.compress((LeafNode) root);
+        } else{
+            compressLeaves((InnerNode) root);
+        }
+    }
+
+    private void compressLeaves(InnerNode node) {
+        Node[] children = node.getChildren();
+        int occupancy = getNodeOccupancy(node.getKeys());
+        for(int i = 0; i <= occupancy; i++){
+            if(children[i] instanceof LeafNode){
+                children[i] = CompressedLeafNode.compress((LeafNode) children[i]);
+            } else{
+                compressLeaves((InnerNode) children[i]);
+            }
+        }
+    }
+
+    ///// Node pool
+
+    /**
+     * Take the leaves and inner nodes for splits from the pool and return
+     * the nodes dropped by merges to it, or stop doing so with {null}. The
+     * pool must be for the capacity of the tree. Iterators that are open
+     * while the tree is written to may see recycled nodes.
+     */
+    public void setNodePool(NodePool nodePool) {
+        if(nodePool != null && nodePool.getCapacity() != capacity){
+            throw new IllegalArgumentException(
+                    "Pool capacity " + nodePool.getCapacity() + " does not match " + capacity);
+        }
+        this.nodePool = nodePool;
+    }
+
+    public NodePool getNodePool() {
+        return nodePool;
+    }
+
+    private LeafNode newLeafNode() {
+        return nodePool != null ? nodePool.leaf() : new LeafNode(capacity);
+    }
+
+    private InnerNode newInnerNode() {
+        return nodePool != null ? nodePool.innerNode() : new InnerNode(capacity);
+    }
+
+    private void releaseNode(Node node) {
+        if(nodePool != null){
+            nodePool.release(node);
+        }
+    }
+
+    ///// Leaf filters
+
+    /**
+     * Check a small Bloom filter over the keys of a leaf before searching
+     * it, so most lookups of missing keys end without touching the keys.
+     * Filters are built by the first lookup in a leaf and dropped by every
+     * write to it, together with the Merkle hash, and cost about one byte
+     * per key.
+     */
+    public void setLeafFilters(boolean leafFilters) {
+        this.leafFilters = leafFilters;
+    }
+
+    public boolean hasLeafFilters() {
+        return leafFilters;
+    }
+
+    ///// Verification
+
+    /**
+     * Check the structural invariants of the tree, see {BPlusTreeVerifier}.
+     * Subtrees are checked in parallel on the common fork/join pool.
+     * @return A description of every violation, empty for a valid tree.
+     */
+    public List<String> verify() {
+        return verify(ForkJoinPool.commonPool());
+    }
+
+    public List<String> verify(ForkJoinPool pool) {
+        return new BPlusTreeVerifier(capacity, appendOptimized).verify(root, pool);
+    }
+
+    ///// Snapshot isolation
+
+    /**
+     * Take a point-in-time view of the tree for {lookup} and {scan}.
+     * While the snapshot is open, every write keeps the value it replaces;
+     * close the snapshot to release these versions. In multi-value mode,
+     * snapshots see the first value of each key.
+     */
+    public ReadSnapshot beginRead() {
+        return versions.begin();
+    }
+
+    /**
+     * Lookup the value stored under the given key when the snapshot was
+     * taken.
+     * @return The stored value, or {null} if the key did not exist.
+     */
+    public String lookup(Integer key, ReadSnapshot snapshot) {
+        checkSnapshot(snapshot);
+        record(TraceRecorder.Operation.LOOKUP, key, null, null);
+        return versions.read(key, lookupInTree(key), snapshot.getVersion());
+    }
+
+    /**
+     * Iterate over the key/value pairs with {from <= key < to} as they were
+     * when the snapshot was taken. Writes may happen between calls to the
+     * iterator, they are not visible to it.
+     */
+    public Iterator<Map.Entry<Integer, String>> scan(Integer from, Integer to,
+                                                     ReadSnapshot snapshot) {
+        checkSnapshot(snapshot);
+        record(TraceRecorder.Operation.SCAN, from, to, null);
+        return versions.scan(from, to, snapshot, key -> iterate(key, to), () -> modCount);
+    }
+
+    /**
+     * Drop all old versions that no open snapshot can see.
+     */
+    public void compactVersions() {
+        versions.compact();
+    }
+
+    private void checkSnapshot(ReadSnapshot snapshot) {
+        if(snapshot.getVersions() != versions){
+            throw new IllegalArgumentException("Snapshot belongs to another tree");
+        }
+        if(snapshot.isClosed()){
+            throw new IllegalStateException("Snapshot is closed");
+        }
+    }
+
+    ///// Snapshot files
+
+    /**
+     * Write the tree to a binary snapshot file, see {BPlusTreeSnapshot}.
+     * Buffered writes are flushed first.
+     */
+    public void writeSnapshot(Path path) throws IOException {
+        BPlusTreeSnapshot.write(this, path);
+    }
+
+    /**
+     * Load a tree from a snapshot file written by {writeSnapshot}.
+     * @throws IOException If the file cannot be read or is corrupt.
+     */
+    public static BPlusTree loadSnapshot(Path path) throws IOException {
+        return BPlusTreeSnapshot.read(path);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    Map<Integer, List<String>> getOverflowValues() {
+        return overflowValues;
+    }
+
+    int getModCount() {
+        return modCount;
+    }
+
+    ///// Leave these methods unchanged
+
+    private int capacity = 0;
+
+    private Node root;
+
+    private boolean multiValued = false;
+
+    private Map<Integer, List<String>> overflowValues = new HashMap<>();
+
+    private int writeBufferSize = 0;
+
+    private LookupCache lookupCache;
+
+    private ChangeFeed changeFeed;
+
+    private TraceRecorder traceRecorder;
+
+    private boolean leafFilters = false;
+
+    private NodePool nodePool;
+
+    /**
+     * Deques for the parents of a leaf, reused by the writes
+     */
+    private final Deque<Deque<InnerNode>> freePaths = new ArrayDeque<>();
+
+    private boolean appendOptimized = false;
+
+    /**
+     * Rightmost leaf and its parents (nearest first) for the append fast
+     * path, {null} after any other structural change.
+     */
+    private LeafNode appendLeaf;
+
+    private Deque<InnerNode> appendParents;
+
+    /**
+     * Number of writes and structural changes, lets iterators notice
+     * changes to the tree.
+     */
+    private int modCount = 0;
+
+    private VersionStore versions = new VersionStore();
 
     public BPlusTree(int capacity) {
         this(new LeafNode(capacity), capacity);
@@ -0,0 +1,226 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntConsumer;
+
+/**
+ * Builds a B+ tree bottom-up from a batch of key/value pairs.
+ * <p>
+ * The input does not have to be sorted. Nodes are packed full from left to
+ * right, only the last two nodes of a level share their entries so that
+ * each of them holds at least {capacity/2} keys. If a key occurs more than
+ * once, the last occurrence wins.
+ * <p>
+ * {build} works single-threaded, {buildParallel} sorts with
+ * {Arrays.parallelSort} and fills the nodes of each level in fork/join tasks.
+ * Since the node boundaries only depend on the number of entries, both
+ * produce exactly the same tree.
+ */
+public class BPlusTreeBuilder {
+
+    /**
+     * Number of nodes filled by a single fork/join task.
+     */
+    private static final int NODES_PER_TASK = 1024;
+
+    private final int capacity;
+
+    public BPlusTreeBuilder(int capacity) {
+        assert capacity % 2 == 0;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Build a tree from the given key/value pairs in the calling thread.
+     */
+    public BPlusTree build(int[] keys, String[] values) {
+        return build(keys, values, null);
+    }
+
+    /**
+     * Build a tree from the given key/value pairs in the common pool.
+     */
+    public BPlusTree buildParallel(int[] keys, String[] values) {
+        return buildParallel(keys, values, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Build a tree from the given key/value pairs in the given pool.
+     */
+    public BPlusTree buildParallel(int[] keys, String[] values,
+                                   ForkJoinPool pool) {
+        return pool.invoke(new BuildTask(keys, values));
+    }
+
+    private BPlusTree build(int[] keys, String[] values, ForkJoinPool pool) {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException(
+                    "Got " + keys.length + " keys but " + values.length +
+                    " values");
+        }
+        //sort key and input position together, the position keeps the sort
+        //stable so that the last occurrence of a key can be found
+        long[] order = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = ((long) keys[i] << 32) | i;
+        }
+        if (pool == null) {
+            Arrays.sort(order);
+        } else {
+            Arrays.parallelSort(order);
+        }
+        int count = removeDuplicates(order);
+
+        //fill leaves
+        int[] leafStarts = partition(count, capacity, capacity / 2);
+        LeafNode[] leaves = new LeafNode[leafStarts.length - 1];
+        run(pool, leaves.length, leaf -> {
+            LeafNode node = new LeafNode(capacity);
+            Integer[] leafKeys = node.getKeys();
+            String[] leafValues = node.getValues();
+            for (int i = leafStarts[leaf]; i < leafStarts[leaf + 1]; i++) {
+                leafKeys[i - leafStarts[leaf]] = (int) (order[i] >> 32);
+                leafValues[i - leafStarts[leaf]] = values[(int) order[i]];
+            }
+            leaves[leaf] = node;
+        });
+        return new BPlusTree(buildInnerLevels(leaves, pool), capacity);
+    }
+
+    /**
+     * Stack inner levels on top of the given nodes until a single root is
+     * left.
+     */
+    Node buildInnerLevels(Node[] level, ForkJoinPool pool) {
+        Integer[] minKeys = new Integer[level.length];
+        for (int i = 0; i < level.length; i++) {
+            minKeys[i] = level[i].getKeys()[0];
+        }
+        while (level.length > 1) {
+            Node[] children = level;
+            Integer[] childMinKeys = minKeys;
+            int[] starts = partition(children.length, capacity + 1,
+                                     capacity / 2 + 1);
+            Node[] parents = new Node[starts.length - 1];
+            Integer[] parentMinKeys = new Integer[parents.length];
+            run(pool, parents.length, parent -> {
+                InnerNode node = new InnerNode(capacity);
+                Integer[] innerKeys = node.getKeys();
+                Node[] innerChildren = node.getChildren();
+                int first = starts[parent];
+                for (int i = first; i < starts[parent + 1]; i++) {
+                    if (i > first) {
+                        innerKeys[i - first - 1] = childMinKeys[i];
+                    }
+                    innerChildren[i - first] = children[i];
+                }
+                parents[parent] = node;
+                parentMinKeys[parent] = childMinKeys[first];
+            });
+            level = parents;
+            minKeys = parentMinKeys;
+        }
+        return level[0];
+    }
+
+    /**
+     * Drop all but the last occurrence of each key from the sorted order.
+     * @return The number of remaining entries.
+     */
+    private static int removeDuplicates(long[] order) {
+        int count = 0;
+        for (int i = 0; i < order.length; i++) {
+            if (i + 1 < order.length &&
+                    (order[i] >> 32) == (order[i + 1] >> 32)) {
+                continue;
+            }
+            order[count++] = order[i];
+        }
+        return count;
+    }
+
+    /**
+     * Split {count} entries into nodes of at most {max} entries.
+     * <p>
+     * Only the last node may be smaller than {max}. If it would end up with
+     * less than {min} entries, it shares the entries with its left neighbor.
+     * @return The start offset of each node followed by {count}.
+     */
+    static int[] partition(int count, int max, int min) {
+        int nodes = Math.max(1, (count + max - 1) / max);
+        int[] starts = new int[nodes + 1];
+        for (int i = 0; i < nodes; i++) {
+            starts[i] = i * max;
+        }
+        starts[nodes] = count;
+        int last = count - starts[nodes - 1];
+        if (nodes > 1 && last < min) {
+            int combined = max + last;
+            starts[nodes - 1] = starts[nodes - 2] + combined - combined / 2;
+        }
+        return starts;
+    }
+
+    private static void run(ForkJoinPool pool, int count, IntConsumer action) {
+        if (pool == null || count <= NODES_PER_TASK) {
+            for (int i = 0; i < count; i++) {
+                action.accept(i);
+            }
+        } else {
+            new RangeTask(0, count, action).invoke();
+        }
+    }
+
+    private static class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+
+        private final int to;
+
+        private final IntConsumer action;
+
+        RangeTask(int from, int to, IntConsumer action) {
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= NODES_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    action.accept(i);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeTask(from, middle, action),
+                          new RangeTask(middle, to, action));
+            }
+        }
+    }
+
+    private class BuildTask extends RecursiveTask<BPlusTree> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] keys;
+
+        private final String[] values;
+
+        BuildTask(int[] keys, String[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        protected BPlusTree compute() {
+            return build(keys, values, getPool());
+        }
+    }
+
+}
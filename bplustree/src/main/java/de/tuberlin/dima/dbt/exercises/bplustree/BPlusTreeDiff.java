@@ -0,0 +1,245 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Finds the keys in which two B+ trees differ using the Merkle hashes of
+ * their nodes.
+ * <p>
+ * Two nodes that cover the same key range and have the same hash hold the
+ * same entries, so their subtrees are skipped. Replicas that went through
+ * the same writes have the same shape and only the paths to changed leaves
+ * are visited. Where the shapes differ, the higher node is opened and each
+ * of its children is compared with the part of the other tree that covers
+ * the same range, until the ranges line up again or leaves are reached.
+ */
+class BPlusTreeDiff {
+
+    private final List<Integer> keys = new ArrayList<>();
+
+    /**
+     * @return The keys stored in only one of the trees or with different
+     * values, in ascending order.
+     */
+    List<Integer> diff(Node left, Node right) {
+        compare(new Subtree(left, null, null, height(left)),
+                new Subtree(right, null, null, height(right)), null, null);
+        return keys;
+    }
+
+    /**
+     * A node together with the key range its parents assign to it,
+     * {low <= key < high}, {null} for an open side.
+     */
+    private static class Subtree {
+
+        final Node node;
+
+        final Integer low;
+
+        final Integer high;
+
+        final int height;
+
+        /**
+         * Number of keys of an inner node, {-1} until first needed.
+         */
+        private int occupancy = -1;
+
+        Subtree(Node node, Integer low, Integer high, int height) {
+            this.node = node;
+            this.low = low;
+            this.high = high;
+            this.height = height;
+        }
+
+        int occupancy() {
+            if (occupancy == -1) {
+                Integer[] nodeKeys = node.getKeys();
+                occupancy = 0;
+                while (occupancy < nodeKeys.length && nodeKeys[occupancy] != null) {
+                    occupancy++;
+                }
+            }
+            return occupancy;
+        }
+
+        /**
+         * @return The position of the child that holds key, the first child
+         * for {-inf}.
+         */
+        int childFor(Integer key) {
+            if (key == null) {
+                return 0;
+            }
+            Integer[] nodeKeys = node.getKeys();
+            int index = 0;
+            while (index < nodeKeys.length && nodeKeys[index] != null &&
+                   nodeKeys[index] <= key) {
+                index++;
+            }
+            return index;
+        }
+
+        /**
+         * @return The position of the last child that holds keys below
+         * high, the last child for {inf}.
+         */
+        int lastChildBelow(Integer high) {
+            if (high == null) {
+                return occupancy();
+            }
+            Integer[] nodeKeys = node.getKeys();
+            int index = 0;
+            while (index < nodeKeys.length && nodeKeys[index] != null &&
+                   nodeKeys[index] < high) {
+                index++;
+            }
+            return index;
+        }
+
+        Subtree child(int index) {
+            Integer[] nodeKeys = node.getKeys();
+            Node[] children = ((InnerNode) node).getChildren();
+            Integer childLow = index == 0 ? low : nodeKeys[index - 1];
+            Integer childHigh = index == occupancy() ? high : nodeKeys[index];
+            return new Subtree(children[index], childLow, childHigh, height - 1);
+        }
+
+        boolean sameRange(Subtree other) {
+            return Objects.equals(low, other.low) && Objects.equals(high, other.high);
+        }
+    }
+
+    /**
+     * Compare both subtrees on {low <= key < high}, which both of them
+     * cover.
+     */
+    private void compare(Subtree left, Subtree right, Integer low, Integer high) {
+        left = narrow(left, low, high);
+        right = narrow(right, low, high);
+        if (left.sameRange(right) && left.node.hash() == right.node.hash()) {
+            return;
+        }
+        if (left.height == 0 && right.height == 0) {
+            compareLeaves((LeafNode) left.node, (LeafNode) right.node, low, high);
+            return;
+        }
+        if (left.height > 0 && left.height == right.height && left.sameRange(right) &&
+            Arrays.equals(left.node.getKeys(), right.node.getKeys())) {
+            //same separators, compare the children pairwise
+            int last = left.lastChildBelow(high);
+            for (int i = left.childFor(low); i <= last; i++) {
+                Subtree leftChild = left.child(i);
+                compare(leftChild, right.child(i), max(leftChild.low, low),
+                        min(leftChild.high, high));
+            }
+            return;
+        }
+        boolean openLeft = left.height >= right.height;
+        Subtree open = openLeft ? left : right;
+        int first = open.childFor(low);
+        int last = open.lastChildBelow(high);
+        for (int i = first; i <= last; i++) {
+            Subtree child = open.child(i);
+            Integer childLow = max(child.low, low);
+            Integer childHigh = min(child.high, high);
+            if (openLeft) {
+                compare(child, right, childLow, childHigh);
+            } else {
+                compare(left, child, childLow, childHigh);
+            }
+        }
+    }
+
+    /**
+     * Descend as long as a single child covers the whole range.
+     */
+    private static Subtree narrow(Subtree subtree, Integer low, Integer high) {
+        //a node that spans exactly the range has more than one child in it
+        while (subtree.height > 0 && !(Objects.equals(subtree.low, low) &&
+                                       Objects.equals(subtree.high, high))) {
+            int first = subtree.childFor(low);
+            if (first != subtree.lastChildBelow(high)) {
+                break;
+            }
+            subtree = subtree.child(first);
+        }
+        return subtree;
+    }
+
+    private void compareLeaves(LeafNode left, LeafNode right, Integer low,
+                               Integer high) {
+        int i = skipBelow(left, low);
+        int j = skipBelow(right, low);
+        while (true) {
+            Integer leftKey = below(left.keyAt(i), high);
+            Integer rightKey = below(right.keyAt(j), high);
+            if (leftKey == null && rightKey == null) {
+                return;
+            }
+            if (rightKey == null || (leftKey != null && leftKey < rightKey)) {
+                keys.add(leftKey);
+                i++;
+            } else if (leftKey == null || rightKey < leftKey) {
+                keys.add(rightKey);
+                j++;
+            } else {
+                if (!Objects.equals(left.valueAt(i), right.valueAt(j))) {
+                    keys.add(leftKey);
+                }
+                i++;
+                j++;
+            }
+        }
+    }
+
+    private static int skipBelow(LeafNode leaf, Integer low) {
+        int position = 0;
+        while (low != null && leaf.keyAt(position) != null &&
+               leaf.keyAt(position) < low) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * @return key if it lies below high, otherwise {null}.
+     */
+    private static Integer below(Integer key, Integer high) {
+        return key != null && (high == null || key < high) ? key : null;
+    }
+
+    /**
+     * @return The larger of two lower bounds, {null} stands for {-inf}.
+     */
+    private static Integer max(Integer a, Integer b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+        return a > b ? a : b;
+    }
+
+    /**
+     * @return The smaller of two upper bounds, {null} stands for {inf}.
+     */
+    private static Integer min(Integer a, Integer b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+        return a < b ? a : b;
+    }
+
+    private static int height(Node node) {
+        int height = 0;
+        while (node instanceof InnerNode) {
+            node = ((InnerNode) node).getChildren()[0];
+            height++;
+        }
+        return height;
+    }
+
+}
@@ -0,0 +1,128 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the entries of a B+ tree in key order.
+ * <p>
+ * Leaves are not linked, so the iterator keeps the path from the root to the
+ * current leaf and moves to the next leaf through the nearest parent that
+ * has a child left.
+ */
+class BPlusTreeIterator implements Iterator<Map.Entry<Integer, String>> {
+
+    private final Integer to;
+
+    /**
+     * Inner nodes on the path to the current leaf with the index of the child
+     * that was taken, nearest parent first.
+     */
+    private final Deque<InnerNode> parents = new ArrayDeque<>();
+
+    private final Deque<Integer> childIndexes = new ArrayDeque<>();
+
+    private LeafNode leaf;
+
+    private int position;
+
+    /**
+     * Iterate over all entries with {from <= key < to}, a {null} bound
+     * leaves that side open.
+     */
+    BPlusTreeIterator(Node root, Integer from, Integer to) {
+        this.to = to;
+        Node node = root;
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            int index = from == null ? 0 : childIndex(innerNode, from);
+            parents.push(innerNode);
+            childIndexes.push(index);
+            node = innerNode.getChildren()[index];
+        }
+        leaf = (LeafNode) node;
+        position = 0;
+        if (from != null) {
+            while (leaf.keyAt(position) != null && leaf.keyAt(position) < from) {
+                position++;
+            }
+        }
+        skipExhaustedLeaves();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return leaf != null && (to == null || leaf.keyAt(position) < to);
+    }
+
+    @Override
+    public Map.Entry<Integer, String> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<Integer, String> entry = new AbstractMap.SimpleImmutableEntry<>(
+                leaf.keyAt(position), leaf.valueAt(position));
+        position++;
+        skipExhaustedLeaves();
+        return entry;
+    }
+
+    /**
+     * The leaf the next entry is read from, or {null} at the end.
+     */
+    LeafNode currentLeaf() {
+        return leaf;
+    }
+
+    /**
+     * Move on to the next leaf with entries if the current one is used up.
+     */
+    private void skipExhaustedLeaves() {
+        while (leaf != null && leaf.keyAt(position) == null) {
+            leaf = nextLeaf();
+            position = 0;
+        }
+    }
+
+    private LeafNode nextLeaf() {
+        while (!parents.isEmpty()) {
+            InnerNode parent = parents.peek();
+            int index = childIndexes.pop() + 1;
+            if (index <= occupancy(parent.getKeys())) {
+                childIndexes.push(index);
+                Node node = parent.getChildren()[index];
+                while (node instanceof InnerNode) {
+                    parents.push((InnerNode) node);
+                    childIndexes.push(0);
+                    node = ((InnerNode) node).getChildren()[0];
+                }
+                return (LeafNode) node;
+            }
+            parents.pop();
+        }
+        return null;
+    }
+
+    private static int childIndex(InnerNode node, Integer key) {
+        Integer[] keys = node.getKeys();
+        int index = 0;
+        while (index < keys.length && keys[index] != null &&
+                key >= keys[index]) {
+            index++;
+        }
+        return index;
+    }
+
+    private static int occupancy(Integer[] keys) {
+        int occupancy = 0;
+        while (occupancy < keys.length && keys[occupancy] != null) {
+            occupancy++;
+        }
+        return occupancy;
+    }
+
+}
@@ -0,0 +1,396 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of a B+ tree.
+ * <p>
+ * The file starts with a header (magic, format version, capacity, flags,
+ * number of levels). The levels follow from the leaves up to the root, each
+ * as the number of nodes and then per node the number of keys and the keys.
+ * Leaves add their values as length-prefixed UTF-8 strings. The children of
+ * an inner node are the next {keys + 1} nodes of the level below, so no
+ * pointers are stored. The last section holds the overflow values of a
+ * multi-valued tree. Every level and the overflow section end with a CRC32
+ * of their bytes.
+ * <p>
+ * Loading creates the nodes directly from the stored keys and values and
+ * never calls {insert}.
+ */
+class BPlusTreeSnapshot {
+
+    private static final int MAGIC = 0x42505453;
+
+    private static final int VERSION = 1;
+
+    private static final int FLAG_MULTI_VALUED = 1;
+
+    /**
+     * Append-built trees leave their rightmost nodes underfull, the verifier
+     * only accepts them with this flag restored.
+     */
+    private static final int FLAG_APPEND_OPTIMIZED = 2;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private BPlusTreeSnapshot() {
+    }
+
+    static void write(BPlusTree tree, Path path) throws IOException {
+        tree.flushWriteBuffers();
+        List<List<Node>> levels = levels(tree.rootNode());
+        try (FileChannel channel = FileChannel.open(
+                path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer out = new Writer(channel);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(tree.getCapacity());
+            out.putInt((tree.isMultiValued() ? FLAG_MULTI_VALUED : 0) |
+                       (tree.isAppendOptimized() ? FLAG_APPEND_OPTIMIZED : 0));
+            out.putInt(levels.size());
+            out.endSection();
+            for (int level = levels.size() - 1; level >= 0; level--) {
+                List<Node> nodes = levels.get(level);
+                out.putInt(nodes.size());
+                for (Node node : nodes) {
+                    if (node instanceof LeafNode) {
+                        //read through keyAt so compressed leaves stay compressed
+                        LeafNode leaf = (LeafNode) node;
+                        int occupancy = 0;
+                        while (leaf.keyAt(occupancy) != null) {
+                            occupancy++;
+                        }
+                        out.putInt(occupancy);
+                        for (int i = 0; i < occupancy; i++) {
+                            out.putInt(leaf.keyAt(i));
+                        }
+                        for (int i = 0; i < occupancy; i++) {
+                            out.putString(leaf.valueAt(i));
+                        }
+                        continue;
+                    }
+                    Integer[] keys = node.getKeys();
+                    int occupancy = occupancy(keys);
+                    out.putInt(occupancy);
+                    for (int i = 0; i < occupancy; i++) {
+                        out.putInt(keys[i]);
+                    }
+                }
+                out.endSection();
+            }
+            Map<Integer, List<String>> overflow = tree.getOverflowValues();
+            out.putInt(overflow.size());
+            for (Map.Entry<Integer, List<String>> entry : overflow.entrySet()) {
+                out.putInt(entry.getKey());
+                out.putInt(entry.getValue().size());
+                for (String value : entry.getValue()) {
+                    out.putString(value);
+                }
+            }
+            out.endSection();
+            out.flush();
+        }
+    }
+
+    static BPlusTree read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                                                    StandardOpenOption.READ)) {
+            Reader in = new Reader(channel);
+            if (in.getInt() != MAGIC) {
+                throw new IOException(path + " is not a B+ tree snapshot");
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            int capacity = in.getInt();
+            int flags = in.getInt();
+            int levelCount = in.getInt();
+            in.endSection("header");
+
+            List<Node> below = Collections.emptyList();
+            for (int level = 0; level < levelCount; level++) {
+                int nodeCount = in.getCount(Integer.BYTES, "node");
+                List<Node> nodes = new ArrayList<>(nodeCount);
+                int child = 0;
+                for (int n = 0; n < nodeCount; n++) {
+                    int keyCount = in.getInt();
+                    if (keyCount > capacity) {
+                        throw new IOException("Node with " + keyCount +
+                                              " keys exceeds capacity");
+                    }
+                    Node node = level == 0 ? new LeafNode(capacity)
+                                           : new InnerNode(capacity);
+                    Integer[] keys = node.getKeys();
+                    for (int i = 0; i < keyCount; i++) {
+                        keys[i] = in.getInt();
+                    }
+                    if (level == 0) {
+                        String[] values = ((LeafNode) node).getValues();
+                        for (int i = 0; i < keyCount; i++) {
+                            values[i] = in.getString();
+                        }
+                    } else {
+                        Node[] children = ((InnerNode) node).getChildren();
+                        if (child + keyCount + 1 > below.size()) {
+                            throw new IOException("Missing children in level " +
+                                                  level);
+                        }
+                        for (int i = 0; i <= keyCount; i++) {
+                            children[i] = below.get(child++);
+                        }
+                    }
+                    nodes.add(node);
+                }
+                if (level > 0 && child != below.size()) {
+                    throw new IOException("Orphaned nodes in level " + (level - 1));
+                }
+                in.endSection("level " + level);
+                below = nodes;
+            }
+            if (below.size() != 1) {
+                throw new IOException("Snapshot has no single root");
+            }
+            BPlusTree tree = new BPlusTree(below.get(0), capacity);
+
+            int overflowCount = in.getCount(2 * Integer.BYTES, "overflow key");
+            if ((flags & FLAG_MULTI_VALUED) != 0) {
+                tree.setMultiValued(true);
+            }
+            if ((flags & FLAG_APPEND_OPTIMIZED) != 0) {
+                tree.setAppendOptimized(true);
+            }
+            Map<Integer, List<String>> overflow = tree.getOverflowValues();
+            for (int i = 0; i < overflowCount; i++) {
+                int key = in.getInt();
+                int count = in.getCount(Integer.BYTES, "overflow value");
+                List<String> values = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    values.add(in.getString());
+                }
+                overflow.put(key, values);
+            }
+            in.endSection("overflow values");
+            return tree;
+        }
+    }
+
+    /**
+     * Collect the nodes of the tree level by level, starting at the root.
+     */
+    private static List<List<Node>> levels(Node root) {
+        List<List<Node>> levels = new ArrayList<>();
+        List<Node> level = Collections.singletonList(root);
+        while (!level.isEmpty()) {
+            levels.add(level);
+            List<Node> next = new ArrayList<>();
+            int leaves = 0;
+            for (Node node : level) {
+                if (node instanceof InnerNode) {
+                    Node[] children = ((InnerNode) node).getChildren();
+                    for (int i = 0; i <= occupancy(node.getKeys()); i++) {
+                        next.add(children[i]);
+                    }
+                } else {
+                    leaves++;
+                }
+            }
+            if (leaves > 0 && leaves < level.size()) {
+                throw new IllegalStateException(
+                        "Leaves are not on the same level");
+            }
+            level = next;
+        }
+        return levels;
+    }
+
+    private static int occupancy(Integer[] keys) {
+        int occupancy = 0;
+        while (occupancy < keys.length && keys[occupancy] != null) {
+            occupancy++;
+        }
+        return occupancy;
+    }
+
+    /**
+     * Buffered channel output that keeps a running CRC32 per section.
+     */
+    private static class Writer {
+
+        private final FileChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private final CRC32 crc = new CRC32();
+
+        private int crcStart = 0;
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putString(String value) throws IOException {
+            if (value == null) {
+                putInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensure(1);
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        void endSection() throws IOException {
+            updateCrc();
+            long value = crc.getValue();
+            crc.reset();
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+            crcStart = buffer.position();
+        }
+
+        void flush() throws IOException {
+            updateCrc();
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+            crcStart = 0;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void updateCrc() {
+            ByteBuffer written = buffer.duplicate();
+            written.flip();
+            written.position(crcStart);
+            crc.update(written);
+            crcStart = buffer.position();
+        }
+    }
+
+    /**
+     * Buffered channel input that checks the CRC32 of each section.
+     */
+    private static class Reader {
+
+        private final FileChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private final CRC32 crc = new CRC32();
+
+        private int crcStart = 0;
+
+        Reader(FileChannel channel) {
+            this.channel = channel;
+            buffer.limit(0);
+        }
+
+        int getInt() throws IOException {
+            ensure(Integer.BYTES);
+            return buffer.getInt();
+        }
+
+        String getString() throws IOException {
+            int length = getInt();
+            if (length < 0) {
+                return null;
+            }
+            if (length > remaining()) {
+                throw new IOException("String of " + length +
+                                      " bytes exceeds the snapshot");
+            }
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                ensure(1);
+                int chunk = Math.min(buffer.remaining(), length - offset);
+                buffer.get(bytes, offset, chunk);
+                offset += chunk;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Read the number of items that follow, each taking at least
+         * {bytesPerItem} bytes, so a corrupt count cannot allocate more than
+         * the file holds.
+         */
+        int getCount(int bytesPerItem, String item) throws IOException {
+            int count = getInt();
+            if (count < 0 || (long) count * bytesPerItem > remaining()) {
+                throw new IOException("Invalid " + item + " count " + count);
+            }
+            return count;
+        }
+
+        /**
+         * @return The number of bytes not read yet.
+         */
+        long remaining() throws IOException {
+            return buffer.remaining() + channel.size() - channel.position();
+        }
+
+        void endSection(String section) throws IOException {
+            updateCrc();
+            long expected = crc.getValue();
+            crc.reset();
+            ensure(Long.BYTES);
+            if (buffer.getLong() != expected) {
+                throw new IOException("Checksum mismatch in " + section);
+            }
+            crcStart = buffer.position();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            updateCrc();
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Unexpected end of snapshot");
+                }
+            }
+            buffer.flip();
+            crcStart = 0;
+        }
+
+        private void updateCrc() {
+            ByteBuffer consumed = buffer.duplicate();
+            consumed.limit(buffer.position());
+            consumed.position(crcStart);
+            crc.update(consumed);
+            crcStart = buffer.position();
+        }
+    }
+
+}
@@ -0,0 +1,218 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Checks the structural invariants of a B+ tree.
+ * <p>
+ * Every node is checked against the key range its parent assigns to it:
+ * keys are sorted and unique, lie inside the range and the node holds
+ * between {capacity/2} and {capacity} keys. Inner nodes need a child for
+ * every key plus one, all children of a node are of the same kind and all
+ * leaves are on the same depth. The root may hold fewer keys, and so may
+ * the rightmost node of each level in append-optimized mode.
+ * <p>
+ * The subtrees of the upper levels are checked as separate fork/join tasks.
+ */
+class BPlusTreeVerifier {
+
+    /**
+     * Depth up to which children are checked in parallel.
+     */
+    private static final int PARALLEL_DEPTH = 2;
+
+    private final int capacity;
+
+    private final boolean appendOptimized;
+
+    BPlusTreeVerifier(int capacity, boolean appendOptimized) {
+        this.capacity = capacity;
+        this.appendOptimized = appendOptimized;
+    }
+
+    /**
+     * @return A description of every violation, empty for a valid tree.
+     */
+    List<String> verify(Node root, ForkJoinPool pool) {
+        return pool.invoke(new SubtreeTask(root, null, null, 0, true)).violations;
+    }
+
+    private static class Result {
+
+        final List<String> violations = new ArrayList<>();
+
+        /**
+         * Depth of the leaves, {-1} if they are not all on the same depth.
+         */
+        int leafDepth;
+    }
+
+    private class SubtreeTask extends RecursiveTask<Result> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node node;
+
+        /**
+         * Range of the node, {low <= key < high}, {null} for an open side.
+         */
+        private final Integer low;
+
+        private final Integer high;
+
+        private final int depth;
+
+        private final boolean rightmost;
+
+        SubtreeTask(Node node, Integer low, Integer high, int depth,
+                    boolean rightmost) {
+            this.node = node;
+            this.low = low;
+            this.high = high;
+            this.depth = depth;
+            this.rightmost = rightmost;
+        }
+
+        @Override
+        protected Result compute() {
+            Result result = new Result();
+            result.leafDepth = depth;
+            int count = checkKeys(result);
+            if (node instanceof LeafNode) {
+                return result;
+            }
+
+            InnerNode innerNode = (InnerNode) node;
+            Node[] children = innerNode.getChildren();
+            checkMessages(innerNode, result);
+            List<SubtreeTask> tasks = new ArrayList<>();
+            boolean leafChildren = children[0] instanceof LeafNode;
+            Integer[] keys = node.getKeys();
+            for (int i = 0; i <= count; i++) {
+                Node child = children[i];
+                if (child == null) {
+                    violation(result, "child " + i + " is missing");
+                    continue;
+                }
+                if ((child instanceof LeafNode) != leafChildren) {
+                    violation(result, "mixes leaf and inner children");
+                }
+                tasks.add(new SubtreeTask(child, i == 0 ? low : keys[i - 1],
+                                          i == count ? high : keys[i],
+                                          depth + 1, rightmost && i == count));
+            }
+            for (int i = count + 1; i < children.length; i++) {
+                if (children[i] != null) {
+                    violation(result, "child " + i + " is set behind the last key");
+                }
+            }
+
+            List<Result> results = new ArrayList<>();
+            if (depth < PARALLEL_DEPTH) {
+                invokeAll(tasks);
+                for (SubtreeTask task : tasks) {
+                    results.add(task.join());
+                }
+            } else {
+                for (SubtreeTask task : tasks) {
+                    results.add(task.compute());
+                }
+            }
+            int leafDepth = 0;
+            for (int i = 0; i < results.size(); i++) {
+                Result child = results.get(i);
+                result.violations.addAll(child.violations);
+                if (i == 0) {
+                    leafDepth = child.leafDepth;
+                } else if (child.leafDepth != leafDepth) {
+                    leafDepth = -1;
+                }
+            }
+            if (leafDepth == -1) {
+                violation(result, "leaves are on different depths");
+            }
+            result.leafDepth = leafDepth;
+            return result;
+        }
+
+        /**
+         * Check order, range and number of the keys.
+         * @return The number of keys.
+         */
+        private int checkKeys(Result result) {
+            int count = 0;
+            Integer previous = null;
+            //compressed leaves have no key array, read them through keyAt
+            int length = node.keys == null ? capacity : node.keys.length;
+            for (int i = 0; i < length; i++) {
+                Integer key = keyAt(i);
+                if (key == null) {
+                    for (int j = i + 1; j < length; j++) {
+                        if (keyAt(j) != null) {
+                            violation(result, "has a gap at key " + i);
+                            break;
+                        }
+                    }
+                    break;
+                }
+                if (previous != null && key <= previous) {
+                    violation(result, "keys are not sorted at key " + i);
+                }
+                if (!inRange(key)) {
+                    violation(result, "key " + key + " is outside of " + range());
+                }
+                previous = key;
+                count++;
+            }
+            if (count > capacity) {
+                violation(result, "holds " + count + " keys");
+            }
+            boolean exempt = depth == 0 || (appendOptimized && rightmost);
+            if (!exempt && count < capacity / 2) {
+                violation(result, "holds " + count + " keys, less than " +
+                                  capacity / 2);
+            }
+            return count;
+        }
+
+        private void checkMessages(InnerNode innerNode, Result result) {
+            if (!innerNode.hasMessages()) {
+                return;
+            }
+            for (Map.Entry<Integer, String> message :
+                    innerNode.getMessages().entrySet()) {
+                if (!inRange(message.getKey())) {
+                    violation(result, "buffers key " + message.getKey() +
+                                      " outside of " + range());
+                }
+            }
+        }
+
+        private Integer keyAt(int position) {
+            if (node instanceof LeafNode) {
+                return ((LeafNode) node).keyAt(position);
+            }
+            return node.getKeys()[position];
+        }
+
+        private boolean inRange(int key) {
+            return (low == null || key >= low) && (high == null || key < high);
+        }
+
+        private String range() {
+            return "[" + (low == null ? "-inf" : low) + ", " +
+                    (high == null ? "inf" : high) + ")";
+        }
+
+        private void violation(Result result, String message) {
+            String kind = node instanceof LeafNode ? "Leaf" : "Inner node";
+            result.violations.add(kind + " " + range() + " at depth " + depth +
+                                  " " + message);
+        }
+    }
+
+}
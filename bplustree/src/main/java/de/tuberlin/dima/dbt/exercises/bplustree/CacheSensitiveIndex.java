@@ -0,0 +1,153 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Read-only copy of the inner levels of a {BPlusTree} laid out for few
+ * cache misses per level.
+ * <p>
+ * Following CSB+ trees, the children of a node are stored next to each
+ * other in the level below, so a node only keeps the position of its first
+ * child instead of one pointer per child. The keys of all nodes of a level
+ * are packed into one {int[]} with {capacity} slots per node, which puts
+ * the keys of a node into one or two cache lines without boxed
+ * {Integer}s. The leaves are shared with the tree.
+ * <p>
+ * This is not a node layout of the tree itself: the tree keeps its own
+ * nodes and writes never update the index. The index is a snapshot of the
+ * structure of the tree for read-only phases. Any write, even one that
+ * leaves the structure as it was, makes it stale, and from then on every
+ * {lookup} goes to the tree and gets none of the benefit until the index is
+ * rebuilt with {build}. Check {isStale} to see which path lookups take.
+ */
+public class CacheSensitiveIndex {
+
+    private final BPlusTree tree;
+
+    private final int modCount;
+
+    private final int capacity;
+
+    /**
+     * Per inner level, root first: keys with {capacity} slots per node,
+     * number of keys per node and position of the first child of each node
+     * in the level below.
+     */
+    private final int[][] levelKeys;
+
+    private final int[][] levelCounts;
+
+    private final int[][] firstChildren;
+
+    private final LeafNode[] leaves;
+
+    private CacheSensitiveIndex(BPlusTree tree, List<List<Node>> levels) {
+        this.tree = tree;
+        this.modCount = tree.getModCount();
+        this.capacity = tree.getCapacity();
+        int innerLevels = levels.size() - 1;
+        levelKeys = new int[innerLevels][];
+        levelCounts = new int[innerLevels][];
+        firstChildren = new int[innerLevels][];
+        for (int level = 0; level < innerLevels; level++) {
+            List<Node> nodes = levels.get(level);
+            int[] keys = new int[nodes.size() * capacity];
+            int[] counts = new int[nodes.size()];
+            int[] first = new int[nodes.size()];
+            int child = 0;
+            for (int n = 0; n < nodes.size(); n++) {
+                Integer[] nodeKeys = nodes.get(n).getKeys();
+                int count = 0;
+                while (count < nodeKeys.length && nodeKeys[count] != null) {
+                    keys[n * capacity + count] = nodeKeys[count];
+                    count++;
+                }
+                counts[n] = count;
+                first[n] = child;
+                child += count + 1;
+            }
+            levelKeys[level] = keys;
+            levelCounts[level] = counts;
+            firstChildren[level] = first;
+        }
+        List<Node> leafLevel = levels.get(innerLevels);
+        leaves = leafLevel.toArray(new LeafNode[0]);
+    }
+
+    /**
+     * Build the index over the current structure of the tree. Buffered
+     * writes are flushed first.
+     */
+    public static CacheSensitiveIndex build(BPlusTree tree) {
+        tree.flushWriteBuffers();
+        return new CacheSensitiveIndex(tree, levels(tree.rootNode()));
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public String lookup(int key) {
+        if (isStale()) {
+            return tree.lookup(key);
+        }
+        int node = 0;
+        for (int level = 0; level < levelKeys.length; level++) {
+            int[] keys = levelKeys[level];
+            int start = node * capacity;
+            int end = start + levelCounts[level][node];
+            //count the separators <= key, the loop has no early exit
+            int child = 0;
+            for (int i = start; i < end; i++) {
+                child += keys[i] <= key ? 1 : 0;
+            }
+            node = firstChildren[level][node] + child;
+        }
+        LeafNode leaf = leaves[node];
+        if (leaf instanceof CompressedLeafNode) {
+            CompressedLeafNode compressed = (CompressedLeafNode) leaf;
+            int position = compressed.find(key);
+            return position == -1 ? null : compressed.valueAt(position);
+        }
+        for (int i = 0; leaf.keyAt(i) != null; i++) {
+            if (leaf.keyAt(i) == key) {
+                return leaf.valueAt(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return {true} if the tree was written to since the index was built.
+     */
+    public boolean isStale() {
+        return tree.getModCount() != modCount;
+    }
+
+    private static List<List<Node>> levels(Node root) {
+        List<List<Node>> levels = new ArrayList<>();
+        List<Node> level = Collections.singletonList(root);
+        while (true) {
+            levels.add(level);
+            if (!(level.get(0) instanceof InnerNode)) {
+                return levels;
+            }
+            List<Node> next = new ArrayList<>();
+            for (Node node : level) {
+                Node[] children = ((InnerNode) node).getChildren();
+                Integer[] keys = node.getKeys();
+                int count = 0;
+                while (count < keys.length && keys[count] != null) {
+                    count++;
+                }
+                for (int i = 0; i <= count; i++) {
+                    next.add(children[i]);
+                }
+            }
+            level = next;
+        }
+    }
+
+}
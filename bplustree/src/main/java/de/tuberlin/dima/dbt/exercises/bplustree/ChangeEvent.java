@@ -0,0 +1,187 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * A write to a {BPlusTree} as published to a {ChangeFeed}.
+ * <p>
+ * Events describe the logical operation, not the nodes it touched, so
+ * replaying them on a tree of any capacity or shape leads to the same
+ * key/value pairs. Sequence numbers start at 1 and have no gaps.
+ */
+public class ChangeEvent {
+
+    public enum Type {
+        /**
+         * {insert(key, value)}
+         */
+        INSERT,
+        /**
+         * {upsert(key, value)}
+         */
+        UPSERT,
+        /**
+         * {delete(key)}
+         */
+        DELETE,
+        /**
+         * {delete(key, value)} in multi-value mode
+         */
+        DELETE_VALUE,
+        /**
+         * {deleteRange(key, to)}
+         */
+        DELETE_RANGE
+    }
+
+    private final long sequence;
+
+    private final Type type;
+
+    private final Integer key;
+
+    private final Integer to;
+
+    private final String value;
+
+    ChangeEvent(long sequence, Type type, Integer key, Integer to, String value) {
+        this.sequence = sequence;
+        this.type = type;
+        this.key = key;
+        this.to = to;
+        this.value = value;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return The written key, or the lower bound of a range delete, which
+     * is {null} for an open range.
+     */
+    public Integer getKey() {
+        return key;
+    }
+
+    /**
+     * @return The upper bound of a range delete, {null} for an open range.
+     */
+    public Integer getTo() {
+        return to;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Apply the operation to the tree.
+     */
+    public void applyTo(BPlusTree tree) {
+        switch (type) {
+            case INSERT:
+                tree.insert(key, value);
+                break;
+            case UPSERT:
+                tree.upsert(key, value);
+                break;
+            case DELETE:
+                tree.delete(key);
+                break;
+            case DELETE_VALUE:
+                tree.delete(key, value);
+                break;
+            case DELETE_RANGE:
+                tree.deleteRange(key, to);
+                break;
+            default:
+                throw new IllegalStateException("Unknown change " + type);
+        }
+    }
+
+    /**
+     * Write the event in a compact binary form for a transport. Values are
+     * written as length-prefixed UTF-8, so they may have any length.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(sequence);
+        out.writeByte(type.ordinal());
+        writeNullable(out, key);
+        writeNullable(out, to);
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Read an event written by {writeTo}.
+     */
+    public static ChangeEvent readFrom(DataInput in) throws IOException {
+        long sequence = in.readLong();
+        int type = in.readByte();
+        if (type < 0 || type >= Type.values().length) {
+            throw new IOException("Unknown change type " + type);
+        }
+        Integer key = readNullable(in);
+        Integer to = readNullable(in);
+        int length = in.readInt();
+        if (length < -1) {
+            throw new IOException("Invalid value length " + length);
+        }
+        String value = null;
+        if (length >= 0) {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return new ChangeEvent(sequence, Type.values()[type], key, to, value);
+    }
+
+    private static void writeNullable(DataOutput out, Integer number) throws IOException {
+        out.writeBoolean(number != null);
+        if (number != null) {
+            out.writeInt(number);
+        }
+    }
+
+    private static Integer readNullable(DataInput in) throws IOException {
+        return in.readBoolean() ? Integer.valueOf(in.readInt()) : null;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ChangeEvent)) {
+            return false;
+        }
+        ChangeEvent event = (ChangeEvent) other;
+        return sequence == event.sequence && type == event.type &&
+               Objects.equals(key, event.key) && Objects.equals(to, event.to) &&
+               Objects.equals(value, event.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(sequence, type, key, to, value);
+    }
+
+    @Override
+    public String toString() {
+        return "#" + sequence + " " + type + "(" + key +
+               (type == Type.DELETE_RANGE ? ", " + to : "") +
+               (value != null ? ", " + value : "") + ")";
+    }
+
+}
@@ -0,0 +1,206 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stream of the writes to a {BPlusTree} for replicas and caches.
+ * <p>
+ * Writes are published as {ChangeEvent}s into a bounded ring buffer, which
+ * every {Subscription} reads at its own pace. Subscribers take events in
+ * batches, so one lock acquisition on the reading side covers many writes.
+ * If the slowest subscriber is a full ring behind, the writer blocks until
+ * it catches up; a subscriber that stops reading has to be closed. Without
+ * subscribers, events only advance the sequence number.
+ */
+public class ChangeFeed {
+
+    private final ChangeEvent[] ring;
+
+    private final int mask;
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * Sequence number of the last published event, guarded by lock.
+     */
+    private long published = 0;
+
+    /**
+     * Lower bound of the position of the slowest subscriber, only
+     * recomputed when the ring looks full.
+     */
+    private long slowest = 0;
+
+    /**
+     * @param ringSize The number of events a subscriber may fall behind,
+     * rounded up to a power of two.
+     */
+    public ChangeFeed(int ringSize) {
+        if (ringSize < 1) {
+            throw new IllegalArgumentException("Ring size must be positive");
+        }
+        int size = Integer.highestOneBit(ringSize);
+        if (size < ringSize) {
+            size <<= 1;
+        }
+        ring = new ChangeEvent[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Start reading with the next published event.
+     */
+    public Subscription subscribe() {
+        lock.lock();
+        try {
+            Subscription subscription = new Subscription(published);
+            subscriptions.add(subscription);
+            return subscription;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The sequence number of the last published event, {0} before
+     * the first one.
+     */
+    public long getPublishedSequence() {
+        lock.lock();
+        try {
+            return published;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRingSize() {
+        return ring.length;
+    }
+
+    /**
+     * Append an event, waiting while the ring is full.
+     */
+    void publish(ChangeEvent.Type type, Integer key, Integer to, String value) {
+        lock.lock();
+        try {
+            if (subscriptions.isEmpty()) {
+                published++;
+                return;
+            }
+            while (published - slowest >= ring.length) {
+                slowest = slowestPosition();
+                if (published - slowest >= ring.length) {
+                    notFull.awaitUninterruptibly();
+                }
+            }
+            published++;
+            ring[(int) (published & mask)] =
+                    new ChangeEvent(published, type, key, to, value);
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long slowestPosition() {
+        long position = published;
+        for (Subscription subscription : subscriptions) {
+            position = Math.min(position, subscription.consumed);
+        }
+        return position;
+    }
+
+    /**
+     * A reader of the feed, which holds back the writer until it has taken
+     * the events.
+     */
+    public class Subscription implements ChangeSource, AutoCloseable {
+
+        /**
+         * Sequence number of the last event taken, guarded by lock.
+         */
+        private long consumed;
+
+        private boolean closed = false;
+
+        private Subscription(long consumed) {
+            this.consumed = consumed;
+        }
+
+        /**
+         * Take up to maxEvents events, waiting up to the timeout if none
+         * are available.
+         * @return The events in sequence order, empty if none arrived in
+         * time or the subscription is closed.
+         */
+        @Override
+        public List<ChangeEvent> poll(int maxEvents, long timeout, TimeUnit unit)
+                throws InterruptedException {
+            lock.lock();
+            try {
+                long nanos = unit.toNanos(timeout);
+                while (!closed && consumed == published) {
+                    if (nanos <= 0) {
+                        return Collections.emptyList();
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                if (closed) {
+                    return Collections.emptyList();
+                }
+                int count = (int) Math.min(maxEvents, published - consumed);
+                List<ChangeEvent> events = new ArrayList<>(count);
+                for (int i = 1; i <= count; i++) {
+                    events.add(ring[(int) ((consumed + i) & mask)]);
+                }
+                consumed += count;
+                notFull.signalAll();
+                return events;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return The number of published events not taken yet.
+         */
+        public long getLag() {
+            lock.lock();
+            try {
+                return published - consumed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Stop reading, the writer no longer waits for this subscription.
+         */
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+                subscriptions.remove(this);
+                notFull.signalAll();
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+}
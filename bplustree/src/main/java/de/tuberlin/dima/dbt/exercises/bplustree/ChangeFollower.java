@@ -0,0 +1,87 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the events of a {ChangeSource} on its own {BPlusTree}.
+ * <p>
+ * The follower's tree may use a different capacity or other options, but
+ * has to be in multi-value mode if the leader is. Events must arrive in
+ * sequence order without gaps, a missing event means the follower has to
+ * be rebuilt, e.g. from a snapshot file.
+ */
+public class ChangeFollower {
+
+    private final ChangeSource source;
+
+    private final BPlusTree tree;
+
+    private long appliedSequence;
+
+    /**
+     * Follow a feed from its first event on.
+     */
+    public ChangeFollower(ChangeSource source, BPlusTree tree) {
+        this(source, tree, 0);
+    }
+
+    /**
+     * Follow a feed whose events up to appliedSequence are already
+     * contained in the tree.
+     */
+    public ChangeFollower(ChangeSource source, BPlusTree tree, long appliedSequence) {
+        this.source = source;
+        this.tree = tree;
+        this.appliedSequence = appliedSequence;
+    }
+
+    /**
+     * Wait up to the timeout for events and apply up to maxEvents of them.
+     * @return The number of applied events.
+     */
+    public int applyAvailable(int maxEvents, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        List<ChangeEvent> events = source.poll(maxEvents, timeout, unit);
+        for (ChangeEvent event : events) {
+            if (event.getSequence() <= appliedSequence) {
+                //delivered again by the transport
+                continue;
+            }
+            if (event.getSequence() != appliedSequence + 1) {
+                throw new IllegalStateException(
+                        "Expected event " + (appliedSequence + 1) + " but got " +
+                        event.getSequence());
+            }
+            event.applyTo(tree);
+            appliedSequence = event.getSequence();
+        }
+        return events.size();
+    }
+
+    /**
+     * Apply events until the one with the given sequence number.
+     * @return {false} if the events did not arrive within the timeout.
+     */
+    public boolean awaitSequence(long sequence, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (appliedSequence < sequence) {
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0) {
+                return false;
+            }
+            applyAvailable(Integer.MAX_VALUE, nanos, TimeUnit.NANOSECONDS);
+        }
+        return true;
+    }
+
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    public BPlusTree getTree() {
+        return tree;
+    }
+
+}
@@ -0,0 +1,19 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers the events of a {ChangeFeed} in sequence order, either directly
+ * from a {ChangeFeed.Subscription} or through a transport.
+ */
+public interface ChangeSource {
+
+    /**
+     * Wait up to the timeout for events.
+     * @return Up to maxEvents events, empty if none arrived in time.
+     */
+    List<ChangeEvent> poll(int maxEvents, long timeout, TimeUnit unit)
+            throws InterruptedException;
+
+}
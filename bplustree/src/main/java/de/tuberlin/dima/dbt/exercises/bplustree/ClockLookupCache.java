@@ -0,0 +1,104 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lookup cache with CLOCK (second chance) eviction.
+ * <p>
+ * Entries live in a fixed ring of slots. A hit only sets the reference bit
+ * of the slot, so reads never reorder anything. To make room, the clock hand
+ * clears set reference bits until it finds an unreferenced slot.
+ */
+public class ClockLookupCache implements LookupCache {
+
+    private final Map<Integer, Integer> slots;
+
+    private final Integer[] keys;
+
+    private final String[] values;
+
+    private final boolean[] referenced;
+
+    private int hand = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    public ClockLookupCache(int capacity) {
+        assert capacity > 0;
+        slots = new HashMap<>(capacity * 2);
+        keys = new Integer[capacity];
+        values = new String[capacity];
+        referenced = new boolean[capacity];
+    }
+
+    @Override
+    public String get(Integer key) {
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        referenced[slot] = true;
+        return values[slot];
+    }
+
+    @Override
+    public void put(Integer key, String value) {
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            slot = nextVictim();
+            if (keys[slot] != null) {
+                slots.remove(keys[slot]);
+            }
+            keys[slot] = key;
+            slots.put(key, slot);
+        }
+        values[slot] = value;
+        referenced[slot] = true;
+    }
+
+    @Override
+    public void invalidate(Integer key) {
+        Integer slot = slots.remove(key);
+        if (slot != null) {
+            keys[slot] = null;
+            values[slot] = null;
+            referenced[slot] = false;
+        }
+    }
+
+    @Override
+    public void clear() {
+        slots.clear();
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = null;
+            values[i] = null;
+            referenced[i] = false;
+        }
+    }
+
+    @Override
+    public long hits() {
+        return hits;
+    }
+
+    @Override
+    public long misses() {
+        return misses;
+    }
+
+    private int nextVictim() {
+        while (keys[hand] != null && referenced[hand]) {
+            referenced[hand] = false;
+            hand = (hand + 1) % keys.length;
+        }
+        int victim = hand;
+        hand = (hand + 1) % keys.length;
+        return victim;
+    }
+
+}
@@ -0,0 +1,229 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Leaf that keeps its entries compressed until they are changed.
+ * <p>
+ * Keys are stored frame-of-reference encoded: the smallest key is kept as
+ * base and every key as its distance to the base, bit-packed with just as
+ * many bits as the largest distance needs. The values are dictionary
+ * encoded, each entry stores the bit-packed index of its value in a table
+ * of the distinct values of the leaf. Both stay randomly accessible, so
+ * lookups binary search the packed keys without decoding the leaf.
+ * <p>
+ * Accessing the key or value arrays through {getKeys}, {getValues} or the
+ * setters decodes the leaf for good, so all code that changes leaves keeps
+ * working unchanged.
+ */
+public class CompressedLeafNode extends LeafNode {
+
+    private final int capacity;
+
+    private int size;
+
+    private int base;
+
+    private int keyBits;
+
+    private long[] packedKeys;
+
+    private String[] dictionary;
+
+    private int codeBits;
+
+    private long[] packedCodes;
+
+    private CompressedLeafNode(int capacity) {
+        super(capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Create a compressed copy of the sorted leaf.
+     */
+    public static CompressedLeafNode compress(LeafNode leaf) {
+        if (leaf instanceof CompressedLeafNode) {
+            return (CompressedLeafNode) leaf;
+        }
+        Integer[] keys = leaf.getKeys();
+        String[] values = leaf.getValues();
+        CompressedLeafNode node = new CompressedLeafNode(keys.length);
+        int size = 0;
+        while (size < keys.length && keys[size] != null) {
+            size++;
+        }
+        node.size = size;
+        node.base = size == 0 ? 0 : keys[0];
+        long range = size == 0 ? 0 : (long) keys[size - 1] - node.base;
+        node.keyBits = bitsFor(range);
+        node.packedKeys = new long[words(size, node.keyBits)];
+        Map<String, Integer> codes = new HashMap<>();
+        int[] valueCodes = new int[size];
+        for (int i = 0; i < size; i++) {
+            pack(node.packedKeys, i, node.keyBits, (long) keys[i] - node.base);
+            Integer code = codes.get(values[i]);
+            if (code == null) {
+                code = codes.size();
+                codes.put(values[i], code);
+            }
+            valueCodes[i] = code;
+        }
+        node.dictionary = new String[codes.size()];
+        for (Map.Entry<String, Integer> entry : codes.entrySet()) {
+            node.dictionary[entry.getValue()] = entry.getKey();
+        }
+        node.codeBits = bitsFor(codes.size() - 1L);
+        node.packedCodes = new long[words(size, node.codeBits)];
+        for (int i = 0; i < size; i++) {
+            pack(node.packedCodes, i, node.codeBits, valueCodes[i]);
+        }
+        node.keys = null;
+        node.values = null;
+        return node;
+    }
+
+    /**
+     * @return {true} until the leaf was decoded by an access to its arrays.
+     */
+    public boolean isCompressed() {
+        return packedKeys != null;
+    }
+
+    /**
+     * Binary search the packed keys.
+     * @return The position of key, or {-1} if the key does not exist.
+     */
+    int find(int key) {
+        if (!isCompressed()) {
+            Integer[] keys = super.getKeys();
+            for (int i = 0; i < keys.length && keys[i] != null; i++) {
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        long target = (long) key - base;
+        if (size == 0 || target < 0) {
+            return -1;
+        }
+        int from = 0;
+        int to = size - 1;
+        while (from <= to) {
+            int middle = (from + to) >>> 1;
+            long delta = unpack(packedKeys, middle, keyBits);
+            if (delta < target) {
+                from = middle + 1;
+            } else if (delta > target) {
+                to = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    Integer keyAt(int position) {
+        if (!isCompressed()) {
+            return super.keyAt(position);
+        }
+        if (position >= size) {
+            return null;
+        }
+        return (int) (base + unpack(packedKeys, position, keyBits));
+    }
+
+    @Override
+    String valueAt(int position) {
+        if (!isCompressed()) {
+            return super.valueAt(position);
+        }
+        if (position >= size) {
+            return null;
+        }
+        return dictionary[(int) unpack(packedCodes, position, codeBits)];
+    }
+
+    @Override
+    public Integer[] getKeys() {
+        decompress();
+        return super.getKeys();
+    }
+
+    @Override
+    public void setKeys(Integer[] keys) {
+        decompress();
+        super.setKeys(keys);
+    }
+
+    @Override
+    public String[] getValues() {
+        decompress();
+        return super.getValues();
+    }
+
+    @Override
+    public void setValues(String[] values) {
+        decompress();
+        super.setValues(values);
+    }
+
+    /**
+     * Restore the plain key and value arrays and drop the packed data.
+     */
+    private void decompress() {
+        if (!isCompressed()) {
+            return;
+        }
+        Integer[] keys = new Integer[capacity];
+        String[] values = new String[capacity];
+        for (int i = 0; i < size; i++) {
+            keys[i] = keyAt(i);
+            values[i] = valueAt(i);
+        }
+        this.keys = keys;
+        this.values = values;
+        packedKeys = null;
+        packedCodes = null;
+        dictionary = null;
+    }
+
+    private static int bitsFor(long maxValue) {
+        return maxValue <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(maxValue);
+    }
+
+    private static int words(int count, int bits) {
+        return (int) (((long) count * bits + 63) >>> 6);
+    }
+
+    private static void pack(long[] words, int index, int bits, long value) {
+        if (bits == 0) {
+            return;
+        }
+        long bit = (long) index * bits;
+        int word = (int) (bit >>> 6);
+        int shift = (int) (bit & 63);
+        words[word] |= value << shift;
+        if (shift + bits > 64) {
+            words[word + 1] |= value >>> (64 - shift);
+        }
+    }
+
+    private static long unpack(long[] words, int index, int bits) {
+        if (bits == 0) {
+            return 0;
+        }
+        long bit = (long) index * bits;
+        int word = (int) (bit >>> 6);
+        int shift = (int) (bit & 63);
+        long value = words[word] >>> shift;
+        if (shift + bits > 64) {
+            value |= words[word + 1] << (64 - shift);
+        }
+        return value & (-1L >>> (64 - bits));
+    }
+
+}
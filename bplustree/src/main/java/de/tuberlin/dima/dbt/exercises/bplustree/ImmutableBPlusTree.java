@@ -0,0 +1,402 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only B+ tree answering lookups directly from a memory-mapped file.
+ * <p>
+ * The file is written once from an existing {BPlusTree}. It stores the
+ * sorted keys as one packed int array (the leaf level), the start offset of
+ * each value, the UTF-8 values, and fence levels above the keys: level
+ * {l + 1} holds every {fanout}-th key of level {l}, so one fence block
+ * covers one 4 KiB page of the level below. A lookup binary searches one
+ * block per level inside the mapped buffers and only creates the returned
+ * {String}, there are no per-node objects. The mapping is backed by the
+ * page cache and therefore shared by all processes opening the same file.
+ * <p>
+ * Layout, all sections start at multiples of 8:
+ * {pre}
+ * header (4 KiB) | keys (int[n]) | value offsets (long[n + 1])
+ *                | fence levels (int[]) | values (byte[])
+ * {pre}
+ */
+public class ImmutableBPlusTree implements Closeable {
+
+    private static final int MAGIC = 0x42505449;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4096;
+
+    private static final int MAX_LEVELS = 16;
+
+    /**
+     * Default number of keys per block, one 4 KiB page of ints.
+     */
+    static final int FANOUT = 1024;
+
+    private static final int SEGMENT_BITS = 30;
+
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private MappedByteBuffer[] segments;
+
+    private final int fanout;
+
+    private final int size;
+
+    /**
+     * Offset and number of keys of each level, level 0 are the keys of all
+     * entries.
+     */
+    private final long[] levelOffsets;
+
+    private final int[] levelSizes;
+
+    private final long valueOffsetsOffset;
+
+    private final long valuesOffset;
+
+    private ImmutableBPlusTree(MappedByteBuffer[] segments) throws IOException {
+        this.segments = segments;
+        if (getInt(0) != MAGIC) {
+            throw new IOException("Not an immutable B+ tree file");
+        }
+        if (getInt(4) != VERSION) {
+            throw new IOException("Unsupported version " + getInt(4));
+        }
+        fanout = getInt(8);
+        int levels = getInt(12);
+        size = (int) getLong(16);
+        valueOffsetsOffset = getLong(24);
+        valuesOffset = getLong(32);
+        levelOffsets = new long[levels];
+        levelSizes = new int[levels];
+        for (int level = 0; level < levels; level++) {
+            levelOffsets[level] = getLong(40 + 16 * level);
+            levelSizes[level] = (int) getLong(48 + 16 * level);
+        }
+    }
+
+    /**
+     * Map the file written by {write}.
+     */
+    public static ImmutableBPlusTree open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                                                    StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_SIZE) {
+                throw new IOException("Not an immutable B+ tree file");
+            }
+            int count = (int) ((length + SEGMENT_MASK) >>> SEGMENT_BITS);
+            MappedByteBuffer[] segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                          Math.min(1L << SEGMENT_BITS,
+                                                   length - start));
+            }
+            return new ImmutableBPlusTree(segments);
+        }
+    }
+
+    /**
+     * Write all entries of the tree into a file that can be opened with
+     * {open}. In multi-value mode only the first value of each key is
+     * written. The file format has no {null} values, a tree that stores one
+     * is rejected before the file is touched.
+     * @throws IllegalArgumentException if the tree stores a {null} value.
+     */
+    public static void write(BPlusTree tree, Path path) throws IOException {
+        write(tree, path, FANOUT);
+    }
+
+    static void write(BPlusTree tree, Path path, int fanout) throws IOException {
+        long count = 0;
+        for (Iterator<Map.Entry<Integer, String>> it = tree.iterate(null, null);
+             it.hasNext(); count++) {
+            Map.Entry<Integer, String> entry = it.next();
+            if (entry.getValue() == null) {
+                throw new IllegalArgumentException(
+                        "Key " + entry.getKey() + " has a null value");
+            }
+        }
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Too many entries: " + count);
+        }
+        int size = (int) count;
+
+        //level sizes are known up front, only the values size is not
+        int[] levelSizes = new int[MAX_LEVELS];
+        int levels = 1;
+        levelSizes[0] = size;
+        while (levelSizes[levels - 1] > fanout) {
+            if (levels == MAX_LEVELS) {
+                throw new IOException("Fanout " + fanout + " is too small");
+            }
+            levelSizes[levels] = (levelSizes[levels - 1] + fanout - 1) / fanout;
+            levels++;
+        }
+        long[] levelOffsets = new long[levels];
+        levelOffsets[0] = HEADER_SIZE;
+        long valueOffsetsOffset = align(HEADER_SIZE + 4L * size);
+        long position = valueOffsetsOffset + 8L * (size + 1);
+        for (int level = 1; level < levels; level++) {
+            levelOffsets[level] = position;
+            position = align(position + 4L * levelSizes[level]);
+        }
+        long valuesOffset = position;
+
+        try (FileChannel channel = FileChannel.open(
+                path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(fanout).putInt(levels);
+            header.putLong(size).putLong(valueOffsetsOffset).putLong(valuesOffset);
+            for (int level = 0; level < levels; level++) {
+                header.putLong(levelOffsets[level]).putLong(levelSizes[level]);
+            }
+            header.rewind();
+            writeFully(channel, header, 0);
+
+            Section keys = new Section(channel, levelOffsets[0]);
+            Section valueOffsets = new Section(channel, valueOffsetsOffset);
+            Section values = new Section(channel, valuesOffset);
+            int[][] fences = new int[levels][];
+            for (int level = 1; level < levels; level++) {
+                fences[level] = new int[levelSizes[level]];
+            }
+            long valuePosition = 0;
+            int index = 0;
+            Iterator<Map.Entry<Integer, String>> it = tree.iterate(null, null);
+            while (it.hasNext()) {
+                Map.Entry<Integer, String> entry = it.next();
+                keys.putInt(entry.getKey());
+                valueOffsets.putLong(valuePosition);
+                byte[] bytes = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                values.put(bytes);
+                valuePosition += bytes.length;
+                if (levels > 1 && index % fanout == 0) {
+                    fences[1][index / fanout] = entry.getKey();
+                }
+                index++;
+            }
+            valueOffsets.putLong(valuePosition);
+            for (int level = 2; level < levels; level++) {
+                for (int i = 0; i < levelSizes[level]; i++) {
+                    fences[level][i] = fences[level - 1][i * fanout];
+                }
+            }
+            for (int level = 1; level < levels; level++) {
+                Section fence = new Section(channel, levelOffsets[level]);
+                for (int key : fences[level]) {
+                    fence.putInt(key);
+                }
+                fence.flush();
+            }
+            keys.flush();
+            valueOffsets.flush();
+            values.flush();
+        }
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public String lookup(int key) {
+        int index = lowerBound(key);
+        if (index < size && keyAt(0, index) == key) {
+            return valueAt(index);
+        }
+        return null;
+    }
+
+    /**
+     * Iterate over the key/value pairs with {from <= key < to} in key order.
+     * A {null} bound leaves that side of the range open.
+     */
+    public Iterator<Map.Entry<Integer, String>> scan(Integer from, Integer to) {
+        int start = from == null ? 0 : lowerBound(from);
+        int end = to == null ? size : lowerBound(to);
+        return new Iterator<Map.Entry<Integer, String>>() {
+
+            private int index = start;
+
+            @Override
+            public boolean hasNext() {
+                return index < end;
+            }
+
+            @Override
+            public Map.Entry<Integer, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<Integer, String> entry =
+                        new AbstractMap.SimpleImmutableEntry<>(keyAt(0, index),
+                                                               valueAt(index));
+                index++;
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * @return The number of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Drop the mapping. The pages are released once the buffers are garbage
+     * collected.
+     */
+    @Override
+    public void close() {
+        segments = null;
+    }
+
+    /**
+     * Find the position of the first key greater or equal to key, descending
+     * through the fence levels one block at a time.
+     */
+    private int lowerBound(int key) {
+        int from = 0;
+        int to = levelSizes[levelSizes.length - 1];
+        for (int level = levelSizes.length - 1; level > 0; level--) {
+            //last fence key <= key, or the first one of the block
+            int fence = Math.max(from, upperBound(level, from, to, key) - 1);
+            from = fence * fanout;
+            to = Math.min(from + fanout, levelSizes[level - 1]);
+        }
+        return upperBound(0, from, to, key - 1L);
+    }
+
+    /**
+     * Find the position of the first key greater than key in the range of
+     * the given level.
+     */
+    private int upperBound(int level, int from, int to, long key) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (keyAt(level, middle) <= key) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+    private int keyAt(int level, int index) {
+        return getInt(levelOffsets[level] + 4L * index);
+    }
+
+    private String valueAt(int index) {
+        long start = getLong(valueOffsetsOffset + 8L * index);
+        long end = getLong(valueOffsetsOffset + 8L * (index + 1));
+        byte[] bytes = new byte[(int) (end - start)];
+        long position = valuesOffset + start;
+        int offset = 0;
+        while (offset < bytes.length) {
+            ByteBuffer segment = segment(position + offset).duplicate();
+            segment.position((int) ((position + offset) & SEGMENT_MASK));
+            int length = Math.min(segment.remaining(), bytes.length - offset);
+            segment.get(bytes, offset, length);
+            offset += length;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //ints and longs are aligned and never cross a segment boundary
+    private int getInt(long position) {
+        return segment(position).getInt((int) (position & SEGMENT_MASK));
+    }
+
+    private long getLong(long position) {
+        return segment(position).getLong((int) (position & SEGMENT_MASK));
+    }
+
+    private MappedByteBuffer segment(long position) {
+        if (segments == null) {
+            throw new IllegalStateException("Tree is closed");
+        }
+        return segments[(int) (position >>> SEGMENT_BITS)];
+    }
+
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer,
+                                   long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Buffered sequential output to one region of the file.
+     */
+    private static class Section {
+
+        private final FileChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+
+        private long position;
+
+        Section(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensure(1);
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            int written = buffer.remaining();
+            writeFully(channel, buffer, position);
+            position += written;
+            buffer.clear();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+
+}
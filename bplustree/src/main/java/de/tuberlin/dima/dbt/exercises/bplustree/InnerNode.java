@@ -1,12 +1,15 @@
 package de.tuberlin.dima.dbt.exercises.bplustree;
 
 import java.util.Arrays;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 
 public class InnerNode extends Node {
 
     private Node[] children;
 
+    private TreeMap<Integer, String> messages;
+
     public InnerNode(int capacity) {
         this(new Integer[] {}, new Node[] {null}, capacity);
     }
@@ -25,6 +28,45 @@ public class InnerNode extends Node {
         this.children = Arrays.copyOf(children, this.children.length);
     }
 
+    /**
+     * Writes buffered for the subtree of this node in write-buffered mode.
+     * A {null} value marks a pending delete.
+     */
+    TreeMap<Integer, String> getMessages() {
+        if (messages == null) {
+            messages = new TreeMap<>();
+        }
+        return messages;
+    }
+
+    boolean hasMessages() {
+        return messages != null && !messages.isEmpty();
+    }
+
+    /**
+     * Remove and return all buffered writes.
+     */
+    TreeMap<Integer, String> takeMessages() {
+        TreeMap<Integer, String> taken = getMessages();
+        messages = null;
+        return taken;
+    }
+
+    /**
+     * Hash over the separators and the hashes of the children, buffered
+     * messages are not part of it.
+     */
+    @Override
+    long computeHash() {
+        long hash = 2;
+        int i = 0;
+        for (; i < keys.length && keys[i] != null; i++) {
+            hash = mix(hash, children[i].hash());
+            hash = mix(hash, keys[i]);
+        }
+        return mix(hash, children[i].hash());
+    }
+
     @Override
     public Object[] getPayload() {
         return getChildren();
@@ -4,7 +4,14 @@ import java.util.Arrays;
 
 public class LeafNode extends Node {
 
-    private String[] values;
+    protected String[] values;
+
+    /**
+     * Bloom filter over the keys, built on first use and dropped by
+     * {markDirty} and {keysChanged}. Volatile, so readers sharing a lock
+     * never see a partially built filter.
+     */
+    private volatile long[] filter;
 
     public LeafNode(int capacity) {
         this(new Integer[] {}, new String[] {}, capacity);
@@ -24,6 +31,98 @@ public class LeafNode extends Node {
         this.values = Arrays.copyOf(values, this.values.length);
     }
 
+    @Override
+    public void setKeys(Integer[] keys) {
+        super.setKeys(keys);
+        keysChanged();
+    }
+
+    /**
+     * Drop the filter once the keys have changed. {markDirty} runs before a
+     * write, and a lookup between the two, like the one that keeps the old
+     * value for open snapshots, builds the filter again from the old keys.
+     */
+    void keysChanged() {
+        filter = null;
+    }
+
+    /**
+     * @return The key at position, or {null} behind the last key.
+     */
+    Integer keyAt(int position) {
+        return position < keys.length ? keys[position] : null;
+    }
+
+    /**
+     * @return The value at position, or {null} behind the last value.
+     */
+    String valueAt(int position) {
+        return position < values.length ? values[position] : null;
+    }
+
+    @Override
+    void markDirty() {
+        super.markDirty();
+        filter = null;
+    }
+
+    /**
+     * Check the filter of the leaf, which has at least eight bits per key
+     * and sets two of them per key, so roughly one in twenty missing keys
+     * passes.
+     * @return {false} if the leaf certainly does not hold key.
+     */
+    boolean mightContain(int key) {
+        long[] bits = filter;
+        if (bits == null) {
+            bits = buildFilter();
+            filter = bits;
+        }
+        long hash = filterHash(key);
+        int mask = bits.length * 64 - 1;
+        int first = (int) hash & mask;
+        int second = (int) (hash >>> 32) & mask;
+        return (bits[first >>> 6] & (1L << first)) != 0 &&
+               (bits[second >>> 6] & (1L << second)) != 0;
+    }
+
+    private long[] buildFilter() {
+        int count = 0;
+        while (keyAt(count) != null) {
+            count++;
+        }
+        //a power of two of at least 64 bits, eight bits per key
+        int size = 64;
+        while (size < count * 8) {
+            size <<= 1;
+        }
+        long[] bits = new long[size / 64];
+        int mask = size - 1;
+        for (int i = 0; keyAt(i) != null; i++) {
+            long hash = filterHash(keyAt(i));
+            int first = (int) hash & mask;
+            int second = (int) (hash >>> 32) & mask;
+            bits[first >>> 6] |= 1L << first;
+            bits[second >>> 6] |= 1L << second;
+        }
+        return bits;
+    }
+
+    private static long filterHash(int key) {
+        return mix(0, key);
+    }
+
+    @Override
+    long computeHash() {
+        long hash = 1;
+        for (int i = 0; keyAt(i) != null; i++) {
+            hash = mix(hash, keyAt(i));
+            String value = valueAt(i);
+            hash = mix(hash, value == null ? 0 : value.hashCode());
+        }
+        return hash;
+    }
+
     @Override
     public Object[] getPayload() {
         return getValues();
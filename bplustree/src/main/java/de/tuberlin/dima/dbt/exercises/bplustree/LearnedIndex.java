@@ -0,0 +1,337 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only replacement of the inner levels of a {BPlusTree} by piecewise
+ * linear models, following PGM indexes.
+ * <p>
+ * The first keys of the leaves are split into segments in which a line
+ * predicts the position of every first key with an error of at most
+ * {epsilon}, so a lookup only binary searches a window of {2 * epsilon + 3}
+ * positions around the prediction. The first keys of the segments are
+ * indexed the same way, level by level, until a single segment is left.
+ * Where keys grow almost linearly, a handful of segments replaces all
+ * inner nodes. The leaves are shared with the tree.
+ * <p>
+ * The index is a snapshot of the structure of the tree. Once the tree is
+ * written to, {lookup} and {scan} fall back to the tree until the index
+ * is rebuilt.
+ */
+public class LearnedIndex {
+
+    private final BPlusTree tree;
+
+    private final int modCount;
+
+    private final int epsilon;
+
+    private final LeafNode[] leaves;
+
+    /**
+     * Smallest key of every leaf, the keys of the lowest level.
+     */
+    private final int[] firstKeys;
+
+    /**
+     * Lowest level first, each level indexes the first keys of the segments
+     * of the level below it. The highest level has a single segment.
+     */
+    private final Level[] levels;
+
+    /**
+     * Segments over a sorted array of keys.
+     */
+    private static class Level {
+
+        final int[] keys;
+
+        /**
+         * Position of the first key of each segment.
+         */
+        final int[] starts;
+
+        final double[] slopes;
+
+        Level(int[] keys, int[] starts, double[] slopes) {
+            this.keys = keys;
+            this.starts = starts;
+            this.slopes = slopes;
+        }
+
+        /**
+         * @return The first key of every segment.
+         */
+        int[] startKeys() {
+            int[] startKeys = new int[starts.length];
+            for (int s = 0; s < starts.length; s++) {
+                startKeys[s] = keys[starts[s]];
+            }
+            return startKeys;
+        }
+    }
+
+    private LearnedIndex(BPlusTree tree, int epsilon, List<LeafNode> leafList) {
+        this.tree = tree;
+        this.modCount = tree.getModCount();
+        this.epsilon = epsilon;
+        leaves = leafList.toArray(new LeafNode[0]);
+        firstKeys = new int[leaves.length];
+        for (int i = 0; i < leaves.length; i++) {
+            firstKeys[i] = leaves[i].keyAt(0);
+        }
+        List<Level> levelList = new ArrayList<>();
+        int[] keys = firstKeys;
+        while (keys.length > 0) {
+            Level level = fit(keys, epsilon);
+            levelList.add(level);
+            if (level.starts.length == 1) {
+                break;
+            }
+            keys = level.startKeys();
+        }
+        levels = levelList.toArray(new Level[0]);
+    }
+
+    /**
+     * Build the index with a maximum prediction error of eight positions.
+     */
+    public static LearnedIndex build(BPlusTree tree) {
+        return build(tree, 8);
+    }
+
+    /**
+     * Build the index over the current leaves of the tree. Buffered writes
+     * are flushed first.
+     * @param epsilon The maximum distance of a predicted position from the
+     * actual one, smaller values lead to more segments.
+     */
+    public static LearnedIndex build(BPlusTree tree, int epsilon) {
+        if (epsilon < 1) {
+            throw new IllegalArgumentException("Epsilon must be positive");
+        }
+        tree.flushWriteBuffers();
+        List<LeafNode> leaves = new ArrayList<>();
+        collectLeaves(tree.rootNode(), leaves);
+        return new LearnedIndex(tree, epsilon, leaves);
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public String lookup(int key) {
+        if (isStale()) {
+            return tree.lookup(key);
+        }
+        int index = findLeaf(key);
+        if (index == -1) {
+            return null;
+        }
+        LeafNode leaf = leaves[index];
+        if (leaf instanceof CompressedLeafNode) {
+            CompressedLeafNode compressed = (CompressedLeafNode) leaf;
+            int position = compressed.find(key);
+            return position == -1 ? null : compressed.valueAt(position);
+        }
+        for (int i = 0; leaf.keyAt(i) != null; i++) {
+            if (leaf.keyAt(i) == key) {
+                return leaf.valueAt(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Iterate over the key/value pairs with {from <= key < to} in key order,
+     * a {null} bound leaves that side of the range open. The iterator fails
+     * once the tree is written to.
+     */
+    public Iterator<Map.Entry<Integer, String>> scan(Integer from, Integer to) {
+        if (isStale()) {
+            return tree.scan(from, to);
+        }
+        int first = from == null ? 0 : Math.max(0, findLeaf(from));
+        return new Iterator<Map.Entry<Integer, String>>() {
+
+            private int leaf = first;
+
+            private int position = 0;
+
+            {
+                while (from != null && leaf < leaves.length &&
+                       leaves[leaf].keyAt(position) != null &&
+                       leaves[leaf].keyAt(position) < from) {
+                    position++;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (isStale()) {
+                    throw new ConcurrentModificationException();
+                }
+                while (leaf < leaves.length && leaves[leaf].keyAt(position) == null) {
+                    leaf++;
+                    position = 0;
+                }
+                return leaf < leaves.length &&
+                       (to == null || leaves[leaf].keyAt(position) < to);
+            }
+
+            @Override
+            public Map.Entry<Integer, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<Integer, String> entry = new AbstractMap.SimpleImmutableEntry<>(
+                        leaves[leaf].keyAt(position), leaves[leaf].valueAt(position));
+                position++;
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * @return {true} if the tree was written to since the index was built.
+     */
+    public boolean isStale() {
+        return tree.getModCount() != modCount;
+    }
+
+    /**
+     * @return The number of segments on all levels.
+     */
+    public int getSegmentCount() {
+        int count = 0;
+        for (Level level : levels) {
+            count += level.starts.length;
+        }
+        return count;
+    }
+
+    /**
+     * @return The approximate size of the index in bytes, not counting the
+     * shared leaves, assuming 16 byte array headers and 4 byte references.
+     */
+    public long estimateSize() {
+        long size = 16 + 4L * leaves.length + 16 + 4L * firstKeys.length;
+        for (Level level : levels) {
+            //the keys of the lowest level are firstKeys, the others are own arrays
+            size += level.keys == firstKeys ? 0 : 16 + 4L * level.keys.length;
+            size += 16 + 4L * level.starts.length + 16 + 8L * level.slopes.length;
+        }
+        return size;
+    }
+
+    /**
+     * @return The position of the leaf that holds key, or {-1} if key is
+     * smaller than all keys of the tree.
+     */
+    private int findLeaf(int key) {
+        int position = 0;
+        for (int l = levels.length - 1; l >= 0 && position != -1; l--) {
+            position = search(levels[l], position, key);
+        }
+        return levels.length == 0 ? -1 : position;
+    }
+
+    /**
+     * @return The position of the last key {<= key} in the keys of the
+     * segment, or {-1} if all keys of the segment are larger.
+     */
+    private int search(Level level, int segment, int key) {
+        int[] keys = level.keys;
+        int first = level.starts[segment];
+        int last = segment + 1 < level.starts.length ? level.starts[segment + 1] - 1
+                                                     : keys.length - 1;
+        if (key < keys[first]) {
+            return segment == 0 ? -1 : first - 1;
+        }
+        double predicted = first + level.slopes[segment] * ((long) key - keys[first]);
+        int low = (int) Math.max(first, Math.min(last, predicted - epsilon - 1));
+        int high = (int) Math.min(last, predicted + epsilon + 1);
+        //the window only misses keys between the points the model was fit on
+        if (keys[low] > key) {
+            high = low;
+            low = first;
+        }
+        if (high < last && keys[high + 1] <= key) {
+            low = high;
+            high = last;
+        }
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (keys[middle] <= key) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Split the keys into segments with the shrinking cone algorithm: a
+     * segment grows as long as one slope predicts all of its keys within
+     * {epsilon} positions.
+     */
+    private static Level fit(int[] keys, int epsilon) {
+        int[] starts = new int[16];
+        double[] slopes = new double[16];
+        int count = 0;
+        int start = 0;
+        double low = 0;
+        double high = Double.POSITIVE_INFINITY;
+        for (int i = 1; i <= keys.length; i++) {
+            if (i < keys.length) {
+                double dx = (double) ((long) keys[i] - keys[start]);
+                double dy = i - start;
+                double newLow = Math.max(low, (dy - epsilon) / dx);
+                double newHigh = Math.min(high, (dy + epsilon) / dx);
+                if (newLow <= newHigh) {
+                    low = newLow;
+                    high = newHigh;
+                    continue;
+                }
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                slopes = Arrays.copyOf(slopes, count * 2);
+            }
+            starts[count] = start;
+            slopes[count] = high == Double.POSITIVE_INFINITY ? 0 : (low + high) / 2;
+            count++;
+            start = i;
+            low = 0;
+            high = Double.POSITIVE_INFINITY;
+        }
+        return new Level(keys, Arrays.copyOf(starts, count), Arrays.copyOf(slopes, count));
+    }
+
+    private static void collectLeaves(Node node, List<LeafNode> leaves) {
+        if (node instanceof LeafNode) {
+            if (((LeafNode) node).keyAt(0) != null) {
+                leaves.add((LeafNode) node);
+            }
+            return;
+        }
+        Node[] children = ((InnerNode) node).getChildren();
+        Integer[] keys = node.getKeys();
+        int count = 0;
+        while (count < keys.length && keys[count] != null) {
+            count++;
+        }
+        for (int i = 0; i <= count; i++) {
+            collectLeaves(children[i], leaves);
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+/**
+ * Bounded cache of key/value pairs in front of a B+ tree.
+ * <p>
+ * The tree consults the cache before descending from the root and
+ * invalidates a key whenever it is written. Implementations decide which
+ * entries to evict and count hits and misses of {get}.
+ */
+public interface LookupCache {
+
+    /**
+     * @return The cached value, or {null} if the key is not cached.
+     */
+    String get(Integer key);
+
+    void put(Integer key, String value);
+
+    void invalidate(Integer key);
+
+    void clear();
+
+    long hits();
+
+    long misses();
+
+    /**
+     * @return The share of {get} calls that found the key, or {0} if there
+     * were none.
+     */
+    default double hitRate() {
+        long lookups = hits() + misses();
+        return lookups == 0 ? 0 : (double) hits() / lookups;
+    }
+
+}
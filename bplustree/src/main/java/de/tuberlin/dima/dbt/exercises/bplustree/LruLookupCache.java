@@ -0,0 +1,63 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lookup cache that evicts the least recently used entry.
+ */
+public class LruLookupCache implements LookupCache {
+
+    private final Map<Integer, String> entries;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    public LruLookupCache(int capacity) {
+        assert capacity > 0;
+        entries = new LinkedHashMap<Integer, String>(capacity * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @Override
+    public String get(Integer key) {
+        String value = entries.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    @Override
+    public void put(Integer key, String value) {
+        entries.put(key, value);
+    }
+
+    @Override
+    public void invalidate(Integer key) {
+        entries.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public long hits() {
+        return hits;
+    }
+
+    @Override
+    public long misses() {
+        return misses;
+    }
+
+}
@@ -6,6 +6,13 @@ public abstract class Node {
 
     protected Integer[] keys;
 
+    /**
+     * Merkle hash of the subtree, only valid while {hashValid} is set.
+     */
+    private long hash;
+
+    private boolean hashValid;
+
     public Node(Integer[] keys, int capacity) {
         assert keys.length <= capacity;
         this.keys = Arrays.copyOf(keys, capacity);
@@ -23,4 +30,36 @@ public abstract class Node {
 
     public abstract void setPayload(Object[] payload);
 
+    /**
+     * Drop the cached hash, called before the node or its subtree changes.
+     */
+    void markDirty() {
+        hashValid = false;
+    }
+
+    /**
+     * @return The hash of the subtree, computed again only if the node was
+     * marked dirty since the last call.
+     */
+    long hash() {
+        if (!hashValid) {
+            hash = computeHash();
+            hashValid = true;
+        }
+        return hash;
+    }
+
+    abstract long computeHash();
+
+    /**
+     * Mix the value into the hash, using the finalizer of SplitMix64 to
+     * spread every input bit over the whole hash.
+     */
+    static long mix(long hash, long value) {
+        long z = hash * 31 + value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
 }
@@ -0,0 +1,93 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Free lists of nodes for trees of one capacity, so nodes dropped by merges
+ * are reused by later splits instead of being collected and allocated
+ * again.
+ * <p>
+ * Every thread has its own free lists of at most {maxNodes} leaves and
+ * inner nodes each, so trees written by different threads can share a
+ * pool without locking. A node is cleared when it is released and keeps
+ * its arrays.
+ */
+public class NodePool {
+
+    private final int capacity;
+
+    private final int maxNodes;
+
+    private final ThreadLocal<ArrayDeque<LeafNode>> leaves =
+            ThreadLocal.withInitial(ArrayDeque::new);
+
+    private final ThreadLocal<ArrayDeque<InnerNode>> innerNodes =
+            ThreadLocal.withInitial(ArrayDeque::new);
+
+    public NodePool(int capacity, int maxNodes) {
+        this.capacity = capacity;
+        this.maxNodes = maxNodes;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return An empty leaf.
+     */
+    LeafNode leaf() {
+        LeafNode leaf = leaves.get().poll();
+        return leaf != null ? leaf : new LeafNode(capacity);
+    }
+
+    /**
+     * @return An inner node without keys and children.
+     */
+    InnerNode innerNode() {
+        InnerNode innerNode = innerNodes.get().poll();
+        return innerNode != null ? innerNode : new InnerNode(capacity);
+    }
+
+    /**
+     * Clear the node and keep it for reuse, unless the free list of the
+     * thread is full. The node must no longer be referenced by any tree.
+     */
+    void release(Node node) {
+        if (node instanceof CompressedLeafNode) {
+            //packed leaves have no arrays to reuse
+            return;
+        }
+        if (node instanceof LeafNode) {
+            ArrayDeque<LeafNode> free = leaves.get();
+            if (free.size() < maxNodes) {
+                LeafNode leaf = (LeafNode) node;
+                leaf.markDirty();
+                Arrays.fill(leaf.keys, null);
+                Arrays.fill(leaf.values, null);
+                free.push(leaf);
+            }
+        } else {
+            ArrayDeque<InnerNode> free = innerNodes.get();
+            if (free.size() < maxNodes) {
+                InnerNode innerNode = (InnerNode) node;
+                innerNode.markDirty();
+                Arrays.fill(innerNode.keys, null);
+                Arrays.fill(innerNode.getChildren(), null);
+                if (innerNode.hasMessages()) {
+                    innerNode.takeMessages();
+                }
+                free.push(innerNode);
+            }
+        }
+    }
+
+    /**
+     * @return The number of free nodes of the calling thread.
+     */
+    public int size() {
+        return leaves.get().size() + innerNodes.get().size();
+    }
+
+}
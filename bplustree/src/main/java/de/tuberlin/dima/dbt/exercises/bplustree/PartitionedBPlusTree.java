@@ -0,0 +1,336 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Thread-safe B+ tree made of independent range partitions.
+ * <p>
+ * Each partition covers the keys from its lower bound up to the lower bound
+ * of the next partition and has its own {BPlusTree} and read/write lock, so
+ * writers to different partitions never contend. Scans visit the
+ * partitions in key order and copy batches of entries under the read lock
+ * of one partition at a time.
+ * <p>
+ * A partition that received {hotPartitionWrites} writes is split at its
+ * median key while the other partitions stay available. The partition
+ * array is replaced copy-on-write; operations that routed to a partition
+ * which was split in the meantime retry on the new array.
+ */
+public class PartitionedBPlusTree {
+
+    /**
+     * Number of entries a scan copies per lock acquisition.
+     */
+    private static final int SCAN_BATCH_SIZE = 1024;
+
+    private final int capacity;
+
+    private volatile Partition[] partitions;
+
+    private volatile long hotPartitionWrites = 0;
+
+    /**
+     * Create a tree with the given number of partitions covering equally
+     * large parts of the int range.
+     */
+    public PartitionedBPlusTree(int capacity, int partitionCount) {
+        this(capacity, evenSplitKeys(partitionCount));
+    }
+
+    /**
+     * Create a tree with one partition below the first split key and one
+     * starting at each split key.
+     */
+    public PartitionedBPlusTree(int capacity, int[] splitKeys) {
+        this.capacity = capacity;
+        int[] bounds = Arrays.copyOf(splitKeys, splitKeys.length);
+        Arrays.sort(bounds);
+        partitions = new Partition[bounds.length + 1];
+        partitions[0] = new Partition(Integer.MIN_VALUE, new BPlusTree(capacity));
+        for (int i = 0; i < bounds.length; i++) {
+            partitions[i + 1] = new Partition(bounds[i], new BPlusTree(capacity));
+        }
+    }
+
+    /**
+     * Lookup the value stored under the given key.
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    public String lookup(int key) {
+        while (true) {
+            Partition partition = route(key);
+            partition.lock.readLock().lock();
+            try {
+                if (!partition.retired) {
+                    return partition.tree.lookup(key);
+                }
+            } finally {
+                partition.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Insert the key/value pair, replacing the value of an existing key.
+     */
+    public void insert(int key, String value) {
+        Partition partition;
+        while (true) {
+            partition = route(key);
+            partition.lock.writeLock().lock();
+            try {
+                if (!partition.retired) {
+                    partition.tree.insert(key, value);
+                    break;
+                }
+            } finally {
+                partition.lock.writeLock().unlock();
+            }
+        }
+        written(partition);
+    }
+
+    /**
+     * Delete the key/value pair.
+     * @return The original value, or {null} if the key does not exist.
+     */
+    public String delete(int key) {
+        Partition partition;
+        String value;
+        while (true) {
+            partition = route(key);
+            partition.lock.writeLock().lock();
+            try {
+                if (!partition.retired) {
+                    value = partition.tree.delete(key);
+                    break;
+                }
+            } finally {
+                partition.lock.writeLock().unlock();
+            }
+        }
+        written(partition);
+        return value;
+    }
+
+    /**
+     * Iterate over the key/value pairs with {from <= key < to} in key order
+     * across all partitions. A {null} bound leaves that side of the range
+     * open. Each batch of entries is consistent within its partition.
+     */
+    public Iterator<Map.Entry<Integer, String>> scan(Integer from, Integer to) {
+        return new Iterator<Map.Entry<Integer, String>>() {
+
+            private Integer cursor = from == null ? Integer.MIN_VALUE : from;
+
+            private Iterator<Map.Entry<Integer, String>> batch =
+                    Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!batch.hasNext() && cursor != null &&
+                        (to == null || cursor < to)) {
+                    List<Map.Entry<Integer, String>> entries = nextBatch();
+                    batch = entries.iterator();
+                }
+                return batch.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Integer, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.next();
+            }
+
+            /**
+             * Copy the next entries from the partition of the cursor and
+             * move the cursor behind them.
+             */
+            private List<Map.Entry<Integer, String>> nextBatch() {
+                while (true) {
+                    Partition[] current = partitions;
+                    int index = indexOf(current, cursor);
+                    Partition partition = current[index];
+                    Integer end = index + 1 < current.length
+                            ? Integer.valueOf(current[index + 1].lowerBound) : null;
+                    if (to != null && (end == null || to < end)) {
+                        end = to;
+                    }
+                    List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+                    partition.lock.readLock().lock();
+                    try {
+                        if (partition.retired) {
+                            continue;
+                        }
+                        Iterator<Map.Entry<Integer, String>> it =
+                                partition.tree.scan(cursor, end);
+                        while (it.hasNext() && entries.size() < SCAN_BATCH_SIZE) {
+                            entries.add(it.next());
+                        }
+                    } finally {
+                        partition.lock.readLock().unlock();
+                    }
+                    if (entries.size() == SCAN_BATCH_SIZE) {
+                        int last = entries.get(entries.size() - 1).getKey();
+                        cursor = last == Integer.MAX_VALUE ? null : last + 1;
+                    } else {
+                        cursor = end;
+                    }
+                    return entries;
+                }
+            }
+        };
+    }
+
+    /**
+     * Split a partition once it received this many writes since it was
+     * created, {0} turns automatic splitting off.
+     */
+    public void setHotPartitionWrites(long hotPartitionWrites) {
+        this.hotPartitionWrites = hotPartitionWrites;
+    }
+
+    /**
+     * Split the partition with the most writes since it was created at its
+     * median key.
+     * @return {false} if the partition has less than two entries.
+     */
+    public boolean splitHottestPartition() {
+        Partition hottest = null;
+        for (Partition partition : partitions) {
+            if (hottest == null || partition.writes.get() > hottest.writes.get()) {
+                hottest = partition;
+            }
+        }
+        return split(hottest);
+    }
+
+    /**
+     * @return The lower bound of each partition, in key order.
+     */
+    public int[] getLowerBounds() {
+        Partition[] current = partitions;
+        int[] bounds = new int[current.length];
+        for (int i = 0; i < current.length; i++) {
+            bounds[i] = current[i].lowerBound;
+        }
+        return bounds;
+    }
+
+    private void written(Partition partition) {
+        long writes = partition.writes.incrementAndGet();
+        if (hotPartitionWrites > 0 && writes == hotPartitionWrites) {
+            split(partition);
+        }
+    }
+
+    /**
+     * Replace the partition by two partitions split at its median key.
+     * The partition stays write locked while its entries are copied.
+     */
+    private synchronized boolean split(Partition partition) {
+        partition.lock.writeLock().lock();
+        try {
+            if (partition.retired) {
+                return false;
+            }
+            List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+            Iterator<Map.Entry<Integer, String>> it = partition.tree.scan(null, null);
+            while (it.hasNext()) {
+                entries.add(it.next());
+            }
+            if (entries.size() < 2) {
+                return false;
+            }
+            int middle = entries.size() / 2;
+            Partition lower = new Partition(partition.lowerBound,
+                                            build(entries.subList(0, middle)));
+            Partition upper = new Partition(entries.get(middle).getKey(),
+                                            build(entries.subList(middle, entries.size())));
+
+            Partition[] current = partitions;
+            int index = Arrays.asList(current).indexOf(partition);
+            Partition[] next = new Partition[current.length + 1];
+            System.arraycopy(current, 0, next, 0, index);
+            next[index] = lower;
+            next[index + 1] = upper;
+            System.arraycopy(current, index + 1, next, index + 2,
+                             current.length - index - 1);
+            partitions = next;
+            partition.retired = true;
+            return true;
+        } finally {
+            partition.lock.writeLock().unlock();
+        }
+    }
+
+    private BPlusTree build(List<Map.Entry<Integer, String>> entries) {
+        int[] keys = new int[entries.size()];
+        String[] values = new String[entries.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = entries.get(i).getKey();
+            values[i] = entries.get(i).getValue();
+        }
+        return new BPlusTreeBuilder(capacity).build(keys, values);
+    }
+
+    private Partition route(int key) {
+        Partition[] current = partitions;
+        return current[indexOf(current, key)];
+    }
+
+    /**
+     * Find the last partition whose lower bound is not larger than key.
+     */
+    private static int indexOf(Partition[] partitions, int key) {
+        int from = 0;
+        int to = partitions.length - 1;
+        while (from < to) {
+            int middle = (from + to + 1) >>> 1;
+            if (partitions[middle].lowerBound <= key) {
+                from = middle;
+            } else {
+                to = middle - 1;
+            }
+        }
+        return from;
+    }
+
+    private static int[] evenSplitKeys(int partitionCount) {
+        int[] splitKeys = new int[partitionCount - 1];
+        long width = (1L << 32) / partitionCount;
+        for (int i = 0; i < splitKeys.length; i++) {
+            splitKeys[i] = (int) (Integer.MIN_VALUE + width * (i + 1));
+        }
+        return splitKeys;
+    }
+
+    private static class Partition {
+
+        final int lowerBound;
+
+        final BPlusTree tree;
+
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        final AtomicLong writes = new AtomicLong();
+
+        volatile boolean retired = false;
+
+        Partition(int lowerBound, BPlusTree tree) {
+            this.lowerBound = lowerBound;
+            this.tree = tree;
+        }
+    }
+
+}
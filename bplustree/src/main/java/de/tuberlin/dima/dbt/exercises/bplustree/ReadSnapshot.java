@@ -0,0 +1,50 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+/**
+ * Point-in-time view of a B+ tree returned by {BPlusTree.beginRead}.
+ * <p>
+ * Reads with the snapshot see the tree as it was when the snapshot was
+ * taken, no matter which writes happened since. Old versions are kept until
+ * all snapshots that can see them are closed.
+ */
+public class ReadSnapshot implements AutoCloseable {
+
+    private final VersionStore versions;
+
+    private final long version;
+
+    private boolean closed = false;
+
+    ReadSnapshot(VersionStore versions, long version) {
+        this.versions = versions;
+        this.version = version;
+    }
+
+    /**
+     * @return The number of writes to the tree before the snapshot was taken.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Release the snapshot so that the versions only it can see can be
+     * garbage collected.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            versions.release(version);
+        }
+    }
+
+    VersionStore getVersions() {
+        return versions;
+    }
+
+}
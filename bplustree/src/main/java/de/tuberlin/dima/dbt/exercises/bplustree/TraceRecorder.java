@@ -0,0 +1,176 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Records the operations a {BPlusTree} receives as a compact binary trace
+ * for {TraceReplayer}.
+ * <p>
+ * Each operation takes one header byte with the operation and the
+ * {null} bounds of ranges, the nanoseconds since the previous operation,
+ * the key, the upper bound of ranges and the length of written values, all
+ * but the header as variable-length integers. Values themselves are not
+ * recorded. Records are collected in a buffer and written in blocks, so
+ * recording costs a few nanoseconds per operation. Recording is
+ * synchronized and may be shared by readers on several threads.
+ * <p>
+ * Writes to the stream that fail stop the recording, {close} reports the
+ * error.
+ */
+public class TraceRecorder implements Closeable {
+
+    public enum Operation {
+        LOOKUP, INSERT, UPSERT, DELETE, DELETE_VALUE, SCAN, DELETE_RANGE, COMPUTE;
+
+        boolean isRange() {
+            return this == SCAN || this == DELETE_RANGE;
+        }
+
+        boolean hasValue() {
+            return this == INSERT || this == UPSERT || this == DELETE_VALUE ||
+                   this == COMPUTE;
+        }
+    }
+
+    static final int MAGIC = 0x42505452;
+
+    static final int VERSION = 1;
+
+    static final int FROM_NULL = 0x10;
+
+    static final int TO_NULL = 0x20;
+
+    private final OutputStream out;
+
+    private final byte[] buffer = new byte[1 << 16];
+
+    private int length = 0;
+
+    private long lastTime = System.nanoTime();
+
+    private long recorded = 0;
+
+    private IOException failure;
+
+    private boolean closed = false;
+
+    public TraceRecorder(OutputStream out) {
+        this.out = out;
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            buffer[length++] = (byte) (MAGIC >>> shift);
+        }
+        buffer[length++] = VERSION;
+    }
+
+    /**
+     * Record into a new file, which is replaced if it exists.
+     */
+    public static TraceRecorder create(Path path) throws IOException {
+        return new TraceRecorder(Files.newOutputStream(path));
+    }
+
+    /**
+     * Record an operation. Range operations use key and to as bounds,
+     * {null} for an open side, value is only used for its length.
+     */
+    synchronized void record(Operation operation, Integer key, Integer to, String value) {
+        if (closed || failure != null) {
+            return;
+        }
+        //header, time, key, to and value length take at most 31 bytes
+        if (length > buffer.length - 32) {
+            writeBuffer();
+        }
+        long now = System.nanoTime();
+        int header = operation.ordinal();
+        if (operation.isRange()) {
+            header |= (key == null ? FROM_NULL : 0) | (to == null ? TO_NULL : 0);
+        }
+        buffer[length++] = (byte) header;
+        putVarLong(Math.max(0, now - lastTime));
+        lastTime = now;
+        if (key != null) {
+            putVarLong(zigZag(key));
+        }
+        if (operation.isRange() && to != null) {
+            putVarLong(zigZag(to));
+        }
+        if (operation.hasValue()) {
+            putVarLong(value == null ? 0 : value.length() + 1L);
+        }
+        recorded++;
+    }
+
+    /**
+     * @return The number of recorded operations.
+     */
+    public synchronized long getRecorded() {
+        return recorded;
+    }
+
+    /**
+     * Write all recorded operations to the stream.
+     */
+    public synchronized void flush() throws IOException {
+        if (failure == null && !closed) {
+            writeBuffer();
+        }
+        if (failure == null && !closed) {
+            out.flush();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Write the remaining operations and close the stream. Later operations
+     * are no longer recorded.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (failure == null) {
+            writeBuffer();
+        }
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void writeBuffer() {
+        try {
+            out.write(buffer, 0, length);
+        } catch (IOException e) {
+            failure = e;
+        }
+        length = 0;
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    private static long zigZag(int value) {
+        return ((long) value << 1) ^ ((long) value >> 63);
+    }
+
+}
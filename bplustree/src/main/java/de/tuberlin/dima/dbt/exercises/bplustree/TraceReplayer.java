@@ -0,0 +1,519 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Replays a trace written by {TraceRecorder} against a tree and measures
+ * throughput and latency.
+ * <p>
+ * The trace is loaded into memory first, so reading it is not measured.
+ * Operations run as fast as possible, the recorded gaps between them are
+ * only kept for {getRecordedNanos}. Written values are replaced by strings
+ * of the recorded length. With several threads, every key is replayed by
+ * the same thread, so the operations on each key keep their order. Range
+ * operations are barriers: all threads finish the operations before one,
+ * it runs alone, and only then the threads go on.
+ */
+public class TraceReplayer {
+
+    /**
+     * The operations a replay needs, see {forTree} and
+     * {forPartitionedTree}.
+     */
+    public interface Target {
+
+        String lookup(int key);
+
+        void insert(int key, String value);
+
+        String delete(int key);
+
+        Iterator<Map.Entry<Integer, String>> scan(Integer from, Integer to);
+
+        default void upsert(int key, String value) {
+            insert(key, value);
+        }
+
+        default void delete(int key, String value) {
+            delete(key);
+        }
+
+        default void deleteRange(Integer from, Integer to) {
+            List<Integer> keys = new ArrayList<>();
+            Iterator<Map.Entry<Integer, String>> entries = scan(from, to);
+            while (entries.hasNext()) {
+                keys.add(entries.next().getKey());
+            }
+            for (int key : keys) {
+                delete(key);
+            }
+        }
+
+        /**
+         * Store value, or delete the key if value is {null}.
+         */
+        default void compute(int key, String value) {
+            if (value == null) {
+                delete(key);
+            } else {
+                insert(key, value);
+            }
+        }
+    }
+
+    /**
+     * Replay against a single tree. Operations are synchronized on the tree,
+     * so several threads can share it.
+     */
+    public static Target forTree(BPlusTree tree) {
+        return new Target() {
+
+            @Override
+            public String lookup(int key) {
+                synchronized (tree) {
+                    return tree.lookup(key);
+                }
+            }
+
+            @Override
+            public void insert(int key, String value) {
+                synchronized (tree) {
+                    tree.insert(key, value);
+                }
+            }
+
+            @Override
+            public String delete(int key) {
+                synchronized (tree) {
+                    return tree.delete(key);
+                }
+            }
+
+            @Override
+            public Iterator<Map.Entry<Integer, String>> scan(Integer from, Integer to) {
+                //consume the scan under the lock, a scan is measured as a whole
+                List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+                synchronized (tree) {
+                    Iterator<Map.Entry<Integer, String>> it = tree.scan(from, to);
+                    while (it.hasNext()) {
+                        entries.add(it.next());
+                    }
+                }
+                return entries.iterator();
+            }
+
+            @Override
+            public void upsert(int key, String value) {
+                synchronized (tree) {
+                    tree.upsert(key, value);
+                }
+            }
+
+            @Override
+            public void delete(int key, String value) {
+                synchronized (tree) {
+                    tree.delete(key, value);
+                }
+            }
+
+            @Override
+            public void deleteRange(Integer from, Integer to) {
+                synchronized (tree) {
+                    tree.deleteRange(from, to);
+                }
+            }
+
+            @Override
+            public void compute(int key, String value) {
+                synchronized (tree) {
+                    tree.compute(key, (k, oldValue) -> value);
+                }
+            }
+        };
+    }
+
+    /**
+     * Replay against a partitioned tree, which is thread-safe by itself.
+     * Upserts and computes become inserts or deletes, range deletes a scan
+     * followed by single deletes.
+     */
+    public static Target forPartitionedTree(PartitionedBPlusTree tree) {
+        return new Target() {
+
+            @Override
+            public String lookup(int key) {
+                return tree.lookup(key);
+            }
+
+            @Override
+            public void insert(int key, String value) {
+                tree.insert(key, value);
+            }
+
+            @Override
+            public String delete(int key) {
+                return tree.delete(key);
+            }
+
+            @Override
+            public Iterator<Map.Entry<Integer, String>> scan(Integer from, Integer to) {
+                return tree.scan(from, to);
+            }
+        };
+    }
+
+    private static final TraceRecorder.Operation[] OPERATIONS =
+            TraceRecorder.Operation.values();
+
+    private final int size;
+
+    private final byte[] operations;
+
+    private final int[] keys;
+
+    private final int[] tos;
+
+    /**
+     * Length of the written value plus one, {0} for {null}.
+     */
+    private final int[] valueLengths;
+
+    private final long recordedNanos;
+
+    private TraceReplayer(int size, byte[] operations, int[] keys, int[] tos,
+                          int[] valueLengths, long recordedNanos) {
+        this.size = size;
+        this.operations = operations;
+        this.keys = keys;
+        this.tos = tos;
+        this.valueLengths = valueLengths;
+        this.recordedNanos = recordedNanos;
+    }
+
+    public static TraceReplayer load(Path path) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            return load(in);
+        }
+    }
+
+    /**
+     * Read a complete trace from the stream.
+     */
+    public static TraceReplayer load(InputStream in) throws IOException {
+        int magic = 0;
+        for (int i = 0; i < 4; i++) {
+            magic = magic << 8 | readByte(in);
+        }
+        if (magic != TraceRecorder.MAGIC) {
+            throw new IOException("Not a trace file");
+        }
+        int version = readByte(in);
+        if (version != TraceRecorder.VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+        int size = 0;
+        byte[] operations = new byte[1024];
+        int[] keys = new int[1024];
+        int[] tos = new int[1024];
+        int[] valueLengths = new int[1024];
+        long nanos = 0;
+        int header;
+        while ((header = in.read()) != -1) {
+            int ordinal = header & 0x0F;
+            if (ordinal >= OPERATIONS.length) {
+                throw new IOException("Unknown operation " + ordinal);
+            }
+            TraceRecorder.Operation operation = OPERATIONS[ordinal];
+            if (size == operations.length) {
+                operations = Arrays.copyOf(operations, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+                tos = Arrays.copyOf(tos, size * 2);
+                valueLengths = Arrays.copyOf(valueLengths, size * 2);
+            }
+            operations[size] = (byte) header;
+            nanos += readVarLong(in);
+            if (!operation.isRange() || (header & TraceRecorder.FROM_NULL) == 0) {
+                keys[size] = unZigZag(readVarLong(in));
+            }
+            if (operation.isRange() && (header & TraceRecorder.TO_NULL) == 0) {
+                tos[size] = unZigZag(readVarLong(in));
+            }
+            if (operation.hasValue()) {
+                valueLengths[size] = (int) readVarLong(in);
+            }
+            size++;
+        }
+        return new TraceReplayer(size, operations, keys, tos, valueLengths, nanos);
+    }
+
+    /**
+     * @return The number of operations in the trace.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The time the recorded operations took to arrive.
+     */
+    public long getRecordedNanos() {
+        return recordedNanos;
+    }
+
+    /**
+     * @return The number of operations of each kind.
+     */
+    public Map<TraceRecorder.Operation, Integer> countOperations() {
+        Map<TraceRecorder.Operation, Integer> counts = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            counts.merge(OPERATIONS[operations[i] & 0x0F], 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    /**
+     * Run all operations of the trace against the target.
+     */
+    public Result replay(Target target, int threads) {
+        Map<Integer, String> values = values();
+        int[] ranges = rangeOperations();
+        int[][] assigned = assign(threads);
+        long[] latencies = new long[size];
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        int[] phase = new int[1];
+        //the last thread to reach a barrier runs the next range operation alone
+        CyclicBarrier barrier = new CyclicBarrier(threads, () -> {
+            if (phase[0] < ranges.length) {
+                execute(target, ranges[phase[0]], values, latencies, failure);
+            }
+            phase[0]++;
+        });
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int[] indexes = assigned[t];
+            workers[t] = new Thread(() -> {
+                int n = 0;
+                try {
+                    for (int p = 0; p <= ranges.length; p++) {
+                        int end = p < ranges.length ? ranges[p] : size;
+                        for (; n < indexes.length && indexes[n] < end; n++) {
+                            execute(target, indexes[n], values, latencies, failure);
+                        }
+                        barrier.await();
+                    }
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    failure.compareAndSet(null, new IllegalStateException("Replay interrupted", e));
+                }
+            });
+            workers[t].start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Replay interrupted", e);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        Arrays.sort(latencies);
+        return new Result(latencies, elapsed);
+    }
+
+    /**
+     * Run the operation at position i of the trace, nothing once another
+     * operation failed.
+     */
+    private void execute(Target target, int i, Map<Integer, String> values,
+                         long[] latencies, AtomicReference<RuntimeException> failure) {
+        if (failure.get() != null) {
+            return;
+        }
+        int header = operations[i];
+        Integer from = (header & TraceRecorder.FROM_NULL) == 0 ? keys[i] : null;
+        Integer to = (header & TraceRecorder.TO_NULL) == 0 ? tos[i] : null;
+        String value = values.get(valueLengths[i]);
+        try {
+            long start = System.nanoTime();
+            switch (OPERATIONS[header & 0x0F]) {
+                case LOOKUP:
+                    target.lookup(keys[i]);
+                    break;
+                case INSERT:
+                    target.insert(keys[i], value);
+                    break;
+                case UPSERT:
+                    target.upsert(keys[i], value);
+                    break;
+                case DELETE:
+                    target.delete(keys[i]);
+                    break;
+                case DELETE_VALUE:
+                    target.delete(keys[i], value);
+                    break;
+                case SCAN:
+                    Iterator<Map.Entry<Integer, String>> entries = target.scan(from, to);
+                    while (entries.hasNext()) {
+                        entries.next();
+                    }
+                    break;
+                case DELETE_RANGE:
+                    target.deleteRange(from, to);
+                    break;
+                case COMPUTE:
+                    target.compute(keys[i], value);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation " + header);
+            }
+            latencies[i] = System.nanoTime() - start;
+        } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    /**
+     * @return The positions of all range operations in the trace.
+     */
+    private int[] rangeOperations() {
+        int count = 0;
+        int[] ranges = new int[16];
+        for (int i = 0; i < size; i++) {
+            if (OPERATIONS[operations[i] & 0x0F].isRange()) {
+                if (count == ranges.length) {
+                    ranges = Arrays.copyOf(ranges, count * 2);
+                }
+                ranges[count++] = i;
+            }
+        }
+        return Arrays.copyOf(ranges, count);
+    }
+
+    /**
+     * @return The point operations of each thread, in trace order.
+     */
+    private int[][] assign(int threads) {
+        int[] counts = new int[threads];
+        int[] owners = new int[size];
+        for (int i = 0; i < size; i++) {
+            if (OPERATIONS[operations[i] & 0x0F].isRange()) {
+                owners[i] = -1;
+                continue;
+            }
+            owners[i] = Math.floorMod(Integer.hashCode(keys[i]) * 0x9E3779B9, threads);
+            counts[owners[i]]++;
+        }
+        int[][] assigned = new int[threads][];
+        for (int t = 0; t < threads; t++) {
+            assigned[t] = new int[counts[t]];
+            counts[t] = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            if (owners[i] != -1) {
+                assigned[owners[i]][counts[owners[i]]++] = i;
+            }
+        }
+        return assigned;
+    }
+
+    /**
+     * @return One value for each distinct recorded length, by the length
+     * plus one as in {valueLengths}.
+     */
+    private Map<Integer, String> values() {
+        Map<Integer, String> values = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            if (valueLengths[i] != 0) {
+                values.computeIfAbsent(valueLengths[i], length -> "v".repeat(length - 1));
+            }
+        }
+        return values;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int value = in.read();
+        if (value == -1) {
+            throw new EOFException("Trace ends within an operation");
+        }
+        return value;
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    private static int unZigZag(long value) {
+        return (int) ((value >>> 1) ^ -(value & 1));
+    }
+
+    /**
+     * Throughput and latency percentiles of a replay.
+     */
+    public static class Result {
+
+        private final long[] latencies;
+
+        private final long elapsedNanos;
+
+        Result(long[] latencies, long elapsedNanos) {
+            this.latencies = latencies;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getThroughput() {
+            return latencies.length / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * @return The latency in nanoseconds that the given fraction of
+         * operations did not exceed, e.g. {0.99}.
+         */
+        public long percentile(double fraction) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(fraction * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(latencies.length - 1, index))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d ops in %.1f ms, %.0f ops/s, latency p50 %.1f us, " +
+                                 "p99 %.1f us, p99.9 %.1f us, max %.1f us",
+                                 latencies.length, elapsedNanos / 1e6, getThroughput(),
+                                 percentile(0.5) / 1e3, percentile(0.99) / 1e3,
+                                 percentile(0.999) / 1e3, percentile(1.0) / 1e3);
+        }
+    }
+
+}
@@ -0,0 +1,218 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+/**
+ * Version chains of overwritten and deleted values for snapshot reads.
+ * <p>
+ * The leaves of the tree always hold the newest value. Every write gets the
+ * next version number. While snapshots are open, a write also appends the
+ * value it replaces to the chain of its key, stamped with the version of
+ * the write. A snapshot taken at version {s} sees the value recorded by the
+ * first write after {s}, or the value in the leaf if there was none.
+ * <p>
+ * Records that no open snapshot can see are dropped whenever their key is
+ * written again, by {compact}, and all at once when the last snapshot is
+ * closed.
+ */
+class VersionStore {
+
+    private long version = 0;
+
+    /**
+     * Open snapshots per version.
+     */
+    private final TreeMap<Long, Integer> active = new TreeMap<>();
+
+    private final TreeMap<Integer, List<Version>> chains = new TreeMap<>();
+
+    ReadSnapshot begin() {
+        active.merge(version, 1, Integer::sum);
+        return new ReadSnapshot(this, version);
+    }
+
+    void release(long snapshot) {
+        active.computeIfPresent(snapshot, (s, count) -> count == 1 ? null : count - 1);
+        if (active.isEmpty()) {
+            chains.clear();
+        }
+    }
+
+    /**
+     * @return {true} if a snapshot is open and writes have to record the
+     * value they replace.
+     */
+    boolean isActive() {
+        return !active.isEmpty();
+    }
+
+    /**
+     * Count a write to key that replaces oldValue ({null} if the key did not
+     * exist).
+     */
+    void recordWrite(Integer key, String oldValue) {
+        version++;
+        if (active.isEmpty()) {
+            return;
+        }
+        List<Version> chain = chains.computeIfAbsent(key, k -> new ArrayList<>(2));
+        prune(chain);
+        chain.add(new Version(version, oldValue));
+    }
+
+    /**
+     * @return The value of key visible at the snapshot, given the current
+     * value in the tree.
+     */
+    String read(Integer key, String current, long snapshot) {
+        List<Version> chain = chains.get(key);
+        if (chain != null) {
+            for (Version record : chain) {
+                if (record.version > snapshot) {
+                    return record.value;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Drop all records no open snapshot can see.
+     */
+    void compact() {
+        Iterator<List<Version>> it = chains.values().iterator();
+        while (it.hasNext()) {
+            List<Version> chain = it.next();
+            prune(chain);
+            if (chain.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The number of recorded old versions.
+     */
+    int size() {
+        int size = 0;
+        for (List<Version> chain : chains.values()) {
+            size += chain.size();
+        }
+        return size;
+    }
+
+    /**
+     * Iterate over the entries with {from <= key < to} visible at the
+     * snapshot.
+     * <p>
+     * The iterator may be interleaved with writes: whenever {modCount}
+     * changed, the scan of the current tree is started again behind the last
+     * returned key with {seek}.
+     */
+    Iterator<Map.Entry<Integer, String>> scan(
+            Integer from, Integer to, ReadSnapshot snapshot,
+            Function<Integer, Iterator<Map.Entry<Integer, String>>> seek,
+            IntSupplier modCount) {
+        return new Iterator<Map.Entry<Integer, String>>() {
+
+            private Integer cursor = from == null ? Integer.MIN_VALUE : from;
+
+            private Iterator<Map.Entry<Integer, String>> current;
+
+            private Map.Entry<Integer, String> peeked;
+
+            private Map.Entry<Integer, String> next;
+
+            private int expectedModCount;
+
+            @Override
+            public boolean hasNext() {
+                if (snapshot.isClosed()) {
+                    throw new IllegalStateException("Snapshot is closed");
+                }
+                while (next == null && cursor != null) {
+                    next = advance();
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<Integer, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<Integer, String> entry = next;
+                next = null;
+                return entry;
+            }
+
+            /**
+             * Move the cursor past the next key in the tree or in the version
+             * chains.
+             * @return The entry for that key, or {null} if it is not visible.
+             */
+            private Map.Entry<Integer, String> advance() {
+                if (current == null || expectedModCount != modCount.getAsInt()) {
+                    current = seek.apply(cursor);
+                    peeked = null;
+                    expectedModCount = modCount.getAsInt();
+                }
+                if (peeked == null && current.hasNext()) {
+                    peeked = current.next();
+                }
+                Integer treeKey = peeked == null ? null : peeked.getKey();
+                Integer chainKey = chains.ceilingKey(cursor);
+                Integer key = treeKey;
+                if (key == null || chainKey != null && chainKey < key) {
+                    key = chainKey;
+                }
+                if (key == null || to != null && key >= to) {
+                    cursor = null;
+                    return null;
+                }
+                String value = null;
+                if (key.equals(treeKey)) {
+                    value = peeked.getValue();
+                    peeked = null;
+                }
+                cursor = key == Integer.MAX_VALUE ? null : key + 1;
+                value = read(key, value, snapshot.getVersion());
+                return value == null ? null
+                                     : new AbstractMap.SimpleImmutableEntry<>(key, value);
+            }
+        };
+    }
+
+    private void prune(List<Version> chain) {
+        if (active.isEmpty()) {
+            chain.clear();
+            return;
+        }
+        long oldest = active.firstKey();
+        chain.removeIf(record -> record.version <= oldest);
+    }
+
+    /**
+     * Value a key had before the write with the given version.
+     */
+    private static class Version {
+
+        final long version;
+
+        final String value;
+
+        Version(long version, String value) {
+            this.version = version;
+            this.value = value;
+        }
+    }
+
+}
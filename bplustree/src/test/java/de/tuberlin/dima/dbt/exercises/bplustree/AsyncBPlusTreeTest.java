@@ -0,0 +1,110 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class AsyncBPlusTreeTest {
+
+    @Test(timeout = 5000)
+    public void lookupAndInsert() throws Exception {
+        // given
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        AsyncBPlusTree tree = new AsyncBPlusTree(new BPlusTree(CAPACITY), executor);
+        List<CompletableFuture<Void>> inserts = new ArrayList<>();
+        for (int key = 0; key < 100; key++) {
+            inserts.add(tree.insertAsync(key, String.valueOf(key)));
+        }
+        CompletableFuture.allOf(inserts.toArray(new CompletableFuture<?>[0])).get();
+        // when
+        CompletableFuture<String> found = tree.lookupAsync(42);
+        CompletableFuture<String> missing = tree.lookupAsync(100);
+        // then
+        assertThat(found.get(), is("42"));
+        assertThat(missing.get(), is(nullValue()));
+        assertThat(tree.deleteAsync(42).get(), is("42"));
+        assertThat(tree.lookupAsync(42).get(), is(nullValue()));
+        executor.shutdown();
+    }
+
+    @Test
+    public void coalesceLookupsOfSameKey() throws Exception {
+        // given
+        Deque<Runnable> tasks = new ArrayDeque<>();
+        AsyncBPlusTree tree = new AsyncBPlusTree(newTree(newLeaf(
+                keys(1, 2), values("a", "b"))), tasks::add);
+        // when
+        CompletableFuture<String> first = tree.lookupAsync(1);
+        CompletableFuture<String> second = tree.lookupAsync(1);
+        CompletableFuture<String> other = tree.lookupAsync(2);
+        // then
+        assertThat(second, is(sameInstance(first)));
+        assertThat(tasks.size(), is(2));
+        while (!tasks.isEmpty()) {
+            tasks.poll().run();
+        }
+        assertThat(first.get(), is("a"));
+        assertThat(other.get(), is("b"));
+    }
+
+    @Test
+    public void writeDetachesPendingLookup() throws Exception {
+        // given
+        Deque<Runnable> tasks = new ArrayDeque<>();
+        AsyncBPlusTree tree = new AsyncBPlusTree(newTree(newLeaf(
+                keys(1), values("a"))), tasks::add);
+        CompletableFuture<String> before = tree.lookupAsync(1);
+        // when
+        tree.insertAsync(1, "b");
+        CompletableFuture<String> after = tree.lookupAsync(1);
+        // then
+        assertThat(after == before, is(false));
+        while (!tasks.isEmpty()) {
+            tasks.poll().run();
+        }
+        assertThat(after.get(), is("b"));
+    }
+
+    @Test(timeout = 5000)
+    public void scanInBatches() throws Exception {
+        // given
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        BPlusTree inner = new BPlusTree(CAPACITY);
+        for (int key = 0; key < 25; key++) {
+            inner.insert(key, String.valueOf(key));
+        }
+        AsyncBPlusTree tree = new AsyncBPlusTree(inner, executor);
+        // when
+        List<Integer> keys = new ArrayList<>();
+        int batches = 0;
+        AsyncBPlusTree.ScanBatch batch = tree.scanAsync(3, 23, 8).get();
+        while (true) {
+            batches++;
+            batch.getEntries().forEach(entry -> keys.add(entry.getKey()));
+            if (!batch.hasMore()) {
+                break;
+            }
+            batch = batch.next().get();
+        }
+        // then
+        assertThat(batches, is(3));
+        assertThat(keys.size(), is(20));
+        for (int i = 0; i < keys.size(); i++) {
+            assertThat(keys.get(i), is(i + 3));
+        }
+        executor.shutdown();
+    }
+
+}
@@ -0,0 +1,751 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Simple wall clock benchmarks for the B+ tree.
+ * <p>
+ * This is not a unit test, run it with the name of a benchmark and optional
+ * arguments, e.g. {BPlusTreeBenchmark bulk 10000000 64}. Each benchmark runs a
+ * warm-up round before the measured rounds.
+ */
+public class BPlusTreeBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) {
+        String benchmark = args.length > 0 ? args[0] : "bulk";
+        switch (benchmark) {
+            case "bulk":
+                bulk(intArg(args, 1, 10_000_000), intArg(args, 2, 64));
+                break;
+            case "buffered":
+                buffered(intArg(args, 1, 1_000_000), intArg(args, 2, 64),
+                         intArg(args, 3, 256));
+                break;
+            case "append":
+                append(intArg(args, 1, 10_000_000), intArg(args, 2, 64));
+                break;
+            case "snapshot":
+                snapshot(intArg(args, 1, 5_000_000), intArg(args, 2, 64));
+                break;
+            case "partitioned":
+                partitioned(intArg(args, 1, 4_000_000), intArg(args, 2, 64),
+                            intArg(args, 3, 64));
+                break;
+            case "compressed":
+                compressed(intArg(args, 1, 5_000_000), intArg(args, 2, 64));
+                break;
+            case "layout":
+                layout(intArg(args, 1, 10_000_000), intArg(args, 2, 64));
+                break;
+            case "retention":
+                retention(intArg(args, 1, 5_000_000), intArg(args, 2, 64));
+                break;
+            case "diff":
+                diff(intArg(args, 1, 5_000_000), intArg(args, 2, 64),
+                     intArg(args, 3, 1000));
+                break;
+            case "merge":
+                merge(intArg(args, 1, 10_000_000), intArg(args, 2, 64),
+                      intArg(args, 3, 1_000_000));
+                break;
+            case "compute":
+                compute(intArg(args, 1, 5_000_000), intArg(args, 2, 64),
+                        intArg(args, 3, 1_000_000));
+                break;
+            case "filter":
+                filter(intArg(args, 1, 5_000_000), intArg(args, 2, 64));
+                break;
+            case "learned":
+                learned(intArg(args, 1, 10_000_000), intArg(args, 2, 64),
+                        intArg(args, 3, 8));
+                break;
+            case "churn":
+                churn(intArg(args, 1, 1_000_000), intArg(args, 2, 64),
+                      intArg(args, 3, 2_000_000));
+                break;
+            case "feed":
+                feed(intArg(args, 1, 5_000_000), intArg(args, 2, 64),
+                     intArg(args, 3, 4096));
+                break;
+            case "replay":
+                replay(intArg(args, 1, 2_000_000), intArg(args, 2, 64),
+                       intArg(args, 3, 4));
+                break;
+            default:
+                System.err.println("Unknown benchmark " + benchmark);
+        }
+    }
+
+    /**
+     * Build a tree from unsorted input sequentially and with an increasing
+     * number of fork/join workers.
+     */
+    private static void bulk(int count, int capacity) {
+        int[] keys = randomKeys(count, 1);
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = String.valueOf(keys[i]);
+        }
+        BPlusTreeBuilder builder = new BPlusTreeBuilder(capacity);
+        report("sequential", count, time(() -> builder.build(keys, values)));
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int workers = 1; workers <= cores; workers *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(workers);
+            report(workers + " workers", count,
+                   time(() -> builder.buildParallel(keys, values, pool)));
+            pool.shutdown();
+        }
+        if (count <= 1_000_000) {
+            report("repeated insert", count, time(() -> {
+                BPlusTree tree = new BPlusTree(capacity);
+                for (int i = 0; i < count; i++) {
+                    tree.insert(keys[i], values[i]);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Insert random keys with and without write buffers in the inner nodes.
+     */
+    private static void buffered(int count, int capacity, int bufferSize) {
+        int[] keys = randomKeys(count, 2);
+        report("direct insert", count, time(() -> {
+            BPlusTree tree = new BPlusTree(capacity);
+            for (int key : keys) {
+                tree.insert(key, "v");
+            }
+        }));
+        report("buffered insert", count, time(() -> {
+            BPlusTree tree = new BPlusTree(capacity);
+            tree.setWriteBufferSize(bufferSize);
+            for (int key : keys) {
+                tree.insert(key, "v");
+            }
+            tree.flushWriteBuffers();
+        }));
+    }
+
+    /**
+     * Insert increasing keys with and without the append fast path.
+     */
+    private static void append(int count, int capacity) {
+        for (boolean optimized : new boolean[] {false, true}) {
+            report(optimized ? "append optimized" : "regular insert", count,
+                   time(() -> {
+                BPlusTree tree = new BPlusTree(capacity);
+                tree.setAppendOptimized(optimized);
+                for (int i = 0; i < count; i++) {
+                    tree.insert(i, "v");
+                }
+            }));
+        }
+    }
+
+    /**
+     * Write a snapshot and load it again, compared to rebuilding the tree
+     * by inserting every entry.
+     */
+    private static void snapshot(int count, int capacity) {
+        int[] keys = randomKeys(count, 3);
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = String.valueOf(keys[i]);
+        }
+        BPlusTree tree = new BPlusTreeBuilder(capacity).build(keys, values);
+        try {
+            Path path = Files.createTempFile("bplustree", ".snapshot");
+            report("write snapshot", count, time(() -> {
+                try {
+                    tree.writeSnapshot(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+            report("load snapshot", count, time(() -> {
+                try {
+                    BPlusTree.loadSnapshot(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+            Files.delete(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        report("re-insert", count, time(() -> {
+            BPlusTree copy = new BPlusTree(capacity);
+            for (int i = 0; i < count; i++) {
+                copy.insert(keys[i], values[i]);
+            }
+        }));
+    }
+
+    /**
+     * Insert random keys from an increasing number of threads into one tree
+     * behind a single lock and into a partitioned tree.
+     */
+    private static void partitioned(int count, int capacity, int partitions) {
+        int[] keys = randomKeys(count, 4);
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            int workers = threads;
+            report(threads + " threads, one lock", count, time(() -> {
+                BPlusTree tree = new BPlusTree(capacity);
+                runThreads(workers, count, key -> {
+                    synchronized (tree) {
+                        tree.insert(keys[key], "v");
+                    }
+                });
+            }));
+            report(threads + " threads, partitioned", count, time(() -> {
+                PartitionedBPlusTree tree =
+                        new PartitionedBPlusTree(capacity, partitions);
+                runThreads(workers, count, key -> tree.insert(keys[key], "v"));
+            }));
+        }
+    }
+
+    /**
+     * Heap use and lookup speed of a tree with dense keys and a few distinct
+     * values, before and after compressing its leaves.
+     */
+    private static void compressed(int count, int capacity) {
+        long empty = usedHeap();
+        Random random = new Random(7);
+        int[] keys = new int[count];
+        String[] values = new String[count];
+        String[] distinct = new String[16];
+        for (int i = 0; i < distinct.length; i++) {
+            distinct[i] = "status-" + i;
+        }
+        for (int i = 0, key = 0; i < count; i++) {
+            key += 1 + random.nextInt(8);
+            keys[i] = key;
+            values[i] = new String(distinct[random.nextInt(distinct.length)]);
+        }
+        BPlusTree tree = new BPlusTreeBuilder(capacity).build(keys, values);
+        values = null;
+        //both numbers include the int array of keys
+        long plain = usedHeap() - empty;
+        int[] probes = randomKeys(1_000_000, 8);
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = keys[Math.floorMod(probes[i], count)];
+        }
+        report("plain lookup", probes.length, time(() -> {
+            for (int key : probes) {
+                tree.lookup(key);
+            }
+        }));
+        tree.compressLeaves();
+        long compressed = usedHeap() - empty;
+        report("compressed lookup", probes.length, time(() -> {
+            for (int key : probes) {
+                tree.lookup(key);
+            }
+        }));
+        System.out.printf("heap: plain %d MB, compressed %d MB (%.1fx)%n",
+                          plain >> 20, compressed >> 20, (double) plain / compressed);
+    }
+
+    /**
+     * Random lookups through the inner nodes of the tree and through a
+     * {CacheSensitiveIndex} over the same leaves.
+     */
+    private static void layout(int count, int capacity) {
+        int[] keys = randomKeys(count, 9);
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = String.valueOf(keys[i]);
+        }
+        BPlusTree tree = new BPlusTreeBuilder(capacity).build(keys, values);
+        CacheSensitiveIndex index = CacheSensitiveIndex.build(tree);
+        int[] probes = randomKeys(1_000_000, 10);
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = keys[Math.floorMod(probes[i], count)];
+        }
+        report("inner nodes", probes.length, time(() -> {
+            for (int key : probes) {
+                tree.lookup(key);
+            }
+        }));
+        report("cache sensitive", probes.length, time(() -> {
+            for (int key : probes) {
+                index.lookup(key);
+            }
+        }));
+    }
+
+    /**
+     * Delete the older half of consecutive keys one by one and with a single
+     * range delete. The tree is rebuilt outside of the measured time.
+     */
+    private static void retention(int count, int capacity) {
+        int[] keys = new int[count];
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = i;
+            values[i] = "v";
+        }
+        BPlusTreeBuilder builder = new BPlusTreeBuilder(capacity);
+        int half = count / 2;
+        for (boolean ranged : new boolean[] {false, true}) {
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round <= ROUNDS; round++) {
+                BPlusTree tree = builder.build(keys, values);
+                long start = System.nanoTime();
+                if (ranged) {
+                    tree.deleteRange(null, half);
+                } else {
+                    for (int i = 0; i < half; i++) {
+                        tree.delete(i);
+                    }
+                }
+                long nanos = System.nanoTime() - start;
+                //the first round is the warm-up
+                best = round == 0 ? best : Math.min(best, nanos);
+            }
+            report(ranged ? "range delete" : "delete per key", half, best);
+        }
+    }
+
+    /**
+     * Add a sorted batch to a large tree by inserting every key and with
+     * one sorted merge. The tree is rebuilt outside of the measured time.
+     */
+    private static void merge(int count, int capacity, int batchSize) {
+        int[] keys = randomKeys(count, 11);
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = String.valueOf(keys[i]);
+        }
+        TreeMap<Integer, String> batch = new TreeMap<>();
+        for (int key : randomKeys(batchSize, 12)) {
+            batch.put(key, "new");
+        }
+        BPlusTreeBuilder builder = new BPlusTreeBuilder(capacity);
+        for (boolean merged : new boolean[] {false, true}) {
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round <= ROUNDS; round++) {
+                BPlusTree tree = builder.build(keys, values);
+                long start = System.nanoTime();
+                if (merged) {
+                    tree.mergeSorted(batch.entrySet().iterator());
+                } else {
+                    for (Map.Entry<Integer, String> entry : batch.entrySet()) {
+                        tree.insert(entry.getKey(), entry.getValue());
+                    }
+                }
+                long nanos = System.nanoTime() - start;
+                //the first round is the warm-up
+                best = round == 0 ? best : Math.min(best, nanos);
+            }
+            report(merged ? "sorted merge" : "insert per key", batch.size(), best);
+        }
+    }
+
+    /**
+     * Compare two replicas after a few writes to one of them, with the
+     * Merkle hashes and by scanning both trees. The first diff computes all
+     * hashes, later ones only those on the changed paths.
+     */
+    private static void diff(int count, int capacity, int changes) {
+        int[] keys = randomKeys(count, 13);
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = String.valueOf(keys[i]);
+        }
+        BPlusTreeBuilder builder = new BPlusTreeBuilder(capacity);
+        BPlusTree tree = builder.build(keys, values);
+        BPlusTree replica = builder.build(keys, values);
+        long start = System.nanoTime();
+        tree.diff(replica);
+        report("first diff", count, System.nanoTime() - start);
+        Random random = new Random(14);
+        long best = Long.MAX_VALUE;
+        int found = 0;
+        for (int round = 0; round <= ROUNDS; round++) {
+            for (int i = 0; i < changes; i++) {
+                replica.insert(keys[random.nextInt(count)], "changed" + round);
+            }
+            start = System.nanoTime();
+            found = tree.diff(replica).size();
+            long nanos = System.nanoTime() - start;
+            //the first round is the warm-up
+            best = round == 0 ? best : Math.min(best, nanos);
+        }
+        report("diff of " + found + " keys", count, best);
+        report("scan both trees", count, time(() -> {
+            Iterator<Map.Entry<Integer, String>> left = tree.scan(null, null);
+            Iterator<Map.Entry<Integer, String>> right = replica.scan(null, null);
+            int differences = 0;
+            while (left.hasNext() && right.hasNext()) {
+                differences += left.next().equals(right.next()) ? 0 : 1;
+            }
+            if (differences < 0) {
+                throw new AssertionError();
+            }
+        }));
+    }
+
+    /**
+     * Count random keys of a fixed key range, with a lookup followed by an
+     * insert and with a single compute.
+     */
+    private static void compute(int count, int capacity, int keyRange) {
+        int[] keys = randomKeys(count, 16);
+        for (int i = 0; i < count; i++) {
+            keys[i] = Math.floorMod(keys[i], keyRange);
+        }
+        report("lookup and insert", count, time(() -> {
+            BPlusTree tree = new BPlusTree(capacity);
+            for (int key : keys) {
+                String value = tree.lookup(key);
+                tree.insert(key, value == null ? "1"
+                                               : String.valueOf(Integer.parseInt(value) + 1));
+            }
+        }));
+        report("compute", count, time(() -> {
+            BPlusTree tree = new BPlusTree(capacity);
+            for (int key : keys) {
+                tree.compute(key, (k, value) -> value == null ? "1"
+                        : String.valueOf(Integer.parseInt(value) + 1));
+            }
+        }));
+    }
+
+    /**
+     * Look up missing keys with and without leaf filters, in plain and in
+     * compressed leaves. The filters are built by the warm-up round.
+     */
+    private static void filter(int count, int capacity) {
+        int[] keys = randomKeys(count, 17);
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            //even keys only, odd keys are missing
+            keys[i] &= ~1;
+            values[i] = String.valueOf(keys[i]);
+        }
+        BPlusTree tree = new BPlusTreeBuilder(capacity).build(keys, values);
+        int[] missing = randomKeys(count, 18);
+        for (int i = 0; i < count; i++) {
+            missing[i] |= 1;
+        }
+        for (boolean compressed : new boolean[] {false, true}) {
+            if (compressed) {
+                tree.compressLeaves();
+            }
+            for (boolean filters : new boolean[] {false, true}) {
+                tree.setLeafFilters(filters);
+                report((compressed ? "compressed, " : "") + (filters ? "filters" : "no filters"),
+                       count, time(() -> {
+                    int found = 0;
+                    for (int key : missing) {
+                        found += tree.lookup(key) != null ? 1 : 0;
+                    }
+                    if (found != 0) {
+                        throw new AssertionError();
+                    }
+                }));
+            }
+        }
+    }
+
+    /**
+     * Random lookups through the inner nodes, a {CacheSensitiveIndex} and a
+     * {LearnedIndex} over the same leaves, for nearly linear and for random
+     * keys, together with the estimated size of the inner levels.
+     */
+    private static void learned(int count, int capacity, int epsilon) {
+        Random random = new Random(19);
+        int[] linear = new int[count];
+        for (int i = 0; i < count; i++) {
+            linear[i] = i * 16 + random.nextInt(16);
+        }
+        for (int[] keys : new int[][] {linear, randomKeys(count, 20)}) {
+            String[] values = new String[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = String.valueOf(keys[i]);
+            }
+            BPlusTree tree = new BPlusTreeBuilder(capacity).build(keys, values);
+            CacheSensitiveIndex cacheSensitive = CacheSensitiveIndex.build(tree);
+            LearnedIndex index = LearnedIndex.build(tree, epsilon);
+            int[] probes = randomKeys(1_000_000, 21);
+            for (int i = 0; i < probes.length; i++) {
+                probes[i] = keys[Math.floorMod(probes[i], count)];
+            }
+            System.out.printf("%s keys: inner nodes %d kB, learned index %d kB in %d segments%n",
+                              keys == linear ? "linear" : "random",
+                              innerSize(tree.rootNode()) / 1024,
+                              index.estimateSize() / 1024, index.getSegmentCount());
+            report("inner nodes", probes.length, time(() -> {
+                for (int key : probes) {
+                    tree.lookup(key);
+                }
+            }));
+            report("cache sensitive", probes.length, time(() -> {
+                for (int key : probes) {
+                    cacheSensitive.lookup(key);
+                }
+            }));
+            report("learned", probes.length, time(() -> {
+                for (int key : probes) {
+                    index.lookup(key);
+                }
+            }));
+        }
+    }
+
+    /**
+     * @return The approximate size of the inner nodes in bytes, with 16
+     * byte object and array headers, 4 byte references and boxed keys.
+     */
+    private static long innerSize(Node node) {
+        if (!(node instanceof InnerNode)) {
+            return 0;
+        }
+        Integer[] keys = node.getKeys();
+        Node[] children = ((InnerNode) node).getChildren();
+        long size = 32 + 16 + 4L * keys.length + 16 + 4L * children.length;
+        for (int i = 0; i < keys.length && keys[i] != null; i++) {
+            size += 16;
+        }
+        for (int i = 0; i < children.length && children[i] != null; i++) {
+            size += innerSize(children[i]);
+        }
+        return size;
+    }
+
+    /**
+     * Replace random keys of a tree of constant size, each operation
+     * deletes a key and inserts a new one. Reports the time and the bytes
+     * the thread allocated per operation.
+     */
+    private static void churn(int count, int capacity, int operations) {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (boolean pooled : new boolean[] {false, true}) {
+            int[] keys = randomKeys(count, 22);
+            int[] replacements = randomKeys(operations, 23);
+            String[] values = new String[count];
+            Arrays.fill(values, "v");
+            long best = Long.MAX_VALUE;
+            long allocated = 0;
+            for (int round = 0; round <= ROUNDS; round++) {
+                BPlusTree tree = new BPlusTreeBuilder(capacity).build(keys, values);
+                if (pooled) {
+                    tree.setNodePool(new NodePool(capacity, 1024));
+                }
+                int[] present = keys.clone();
+                long bytes = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                for (int i = 0; i < operations; i++) {
+                    int slot = Math.floorMod(replacements[i], count);
+                    tree.delete(present[slot]);
+                    present[slot] = replacements[i];
+                    tree.insert(replacements[i], "v");
+                }
+                long nanos = System.nanoTime() - start;
+                //the first round is the warm-up
+                if (round > 0 && nanos < best) {
+                    best = nanos;
+                    allocated = threads.getThreadAllocatedBytes(thread) - bytes;
+                }
+            }
+            report(pooled ? "churn, node pool" : "churn", operations, best);
+            System.out.printf("%-24s %10.1f bytes/op%n", "", (double) allocated / operations);
+        }
+    }
+
+    /**
+     * Insert random keys without a change feed, into a feed without
+     * subscribers, and into a feed that a follower thread applies to its
+     * own tree.
+     */
+    private static void feed(int count, int capacity, int ringSize) {
+        int[] keys = randomKeys(count, 15);
+        for (String mode : new String[] {"no feed", "feed, no subscriber", "feed, follower"}) {
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round <= ROUNDS; round++) {
+                BPlusTree tree = new BPlusTree(capacity);
+                ChangeFeed feed = new ChangeFeed(ringSize);
+                if (!mode.equals("no feed")) {
+                    tree.setChangeFeed(feed);
+                }
+                Thread replication = null;
+                if (mode.equals("feed, follower")) {
+                    ChangeFollower follower =
+                            new ChangeFollower(feed.subscribe(), new BPlusTree(capacity));
+                    replication = new Thread(() -> {
+                        try {
+                            follower.awaitSequence(count, 1, TimeUnit.MINUTES);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    });
+                    replication.start();
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    tree.insert(keys[i], "v");
+                }
+                long nanos = System.nanoTime() - start;
+                if (replication != null) {
+                    try {
+                        replication.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                //the first round is the warm-up
+                best = round == 0 ? best : Math.min(best, nanos);
+            }
+            report(mode, count, best);
+        }
+    }
+
+    /**
+     * Run a mixed workload with and without recording it, then replay the
+     * recorded trace against other capacities and a partitioned tree.
+     */
+    private static void replay(int count, int capacity, int threads) {
+        int[] keys = randomKeys(count, 16);
+        Random random = new Random(16);
+        int[] kinds = new int[count];
+        for (int i = 0; i < count; i++) {
+            kinds[i] = random.nextInt(10);
+        }
+        try {
+            Path path = Files.createTempFile("bplustree", ".trace");
+            for (boolean recording : new boolean[] {false, true}) {
+                long best = Long.MAX_VALUE;
+                for (int round = 0; round <= ROUNDS; round++) {
+                    BPlusTree tree = new BPlusTree(capacity);
+                    TraceRecorder recorder = TraceRecorder.create(path);
+                    if (recording) {
+                        tree.setTraceRecorder(recorder);
+                    }
+                    long start = System.nanoTime();
+                    for (int i = 0; i < count; i++) {
+                        //half lookups, the other half writes to earlier keys
+                        int key = keys[i >> 1];
+                        if (kinds[i] < 5) {
+                            tree.lookup(key);
+                        } else if (kinds[i] < 8) {
+                            tree.insert(keys[i], "value");
+                        } else if (kinds[i] < 9) {
+                            tree.upsert(key, "other value");
+                        } else {
+                            tree.delete(key);
+                        }
+                    }
+                    recorder.close();
+                    long nanos = System.nanoTime() - start;
+                    //the first round is the warm-up
+                    best = round == 0 ? best : Math.min(best, nanos);
+                }
+                report(recording ? "recorded" : "not recorded", count, best);
+            }
+            System.out.printf("trace of %d bytes%n", Files.size(path));
+            TraceReplayer trace = TraceReplayer.load(path);
+            Files.delete(path);
+            for (int replayCapacity : new int[] {16, capacity, 256}) {
+                trace.replay(TraceReplayer.forTree(new BPlusTree(replayCapacity)), 1);
+                TraceReplayer.Result result = trace.replay(
+                        TraceReplayer.forTree(new BPlusTree(replayCapacity)), 1);
+                System.out.printf("capacity %-4d %s%n", replayCapacity, result);
+            }
+            for (int t : new int[] {1, threads}) {
+                TraceReplayer.Result result = trace.replay(TraceReplayer.forPartitionedTree(
+                        new PartitionedBPlusTree(capacity, threads)), t);
+                System.out.printf("partitioned, %d threads %s%n", t, result);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Split the indexes {0 <= i < count} evenly between the threads and wait
+     * until all of them are processed.
+     */
+    private static void runThreads(int threads, int count, IntConsumer action) {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int from = (int) ((long) count * t / threads);
+            int to = (int) ((long) count * (t + 1) / threads);
+            workers[t] = new Thread(() -> {
+                for (int i = from; i < to; i++) {
+                    action.accept(i);
+                }
+            });
+            workers[t].start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static int[] randomKeys(int count, long seed) {
+        Random random = new Random(seed);
+        int[] keys = new int[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = random.nextInt();
+        }
+        return keys;
+    }
+
+    static int intArg(String[] args, int position, int defaultValue) {
+        return args.length > position ? Integer.parseInt(args[position])
+                                      : defaultValue;
+    }
+
+    /**
+     * Run the action once for warm-up and return the best time of the
+     * measured rounds in nanoseconds.
+     */
+    static long time(Runnable action) {
+        action.run();
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            action.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    static void report(String name, long operations, long nanos) {
+        System.out.printf("%-24s %10.1f ms %12.0f ops/s%n", name, nanos / 1e6,
+                          operations / (nanos / 1e9));
+    }
+
+}
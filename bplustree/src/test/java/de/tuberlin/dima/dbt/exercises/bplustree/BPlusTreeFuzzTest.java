@@ -0,0 +1,283 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Differential tests that run random operations, including range deletes,
+ * sorted merges and compute, against a {BPlusTree} and a {TreeMap} and compare every result.
+ * <p>
+ * Each run checks the structure with {verify} and compares a full scan
+ * every {CHECK_INTERVAL} operations. A failing run is shrunk to a shorter
+ * operation sequence that still fails, which is reported together with
+ * the seed. The number of operations per run defaults to a few thousand and
+ * can be raised with {-Dfuzz.operations=5000000}, {-Dfuzz.seed} picks the
+ * seed. With {-Dfuzz.report=target/fuzz-throughput.csv}, the throughput of
+ * every run is appended to that file.
+ */
+public class BPlusTreeFuzzTest {
+
+    private static final int OPERATIONS =
+            Integer.getInteger("fuzz.operations", 20_000);
+
+    private static final long SEED = Long.getLong("fuzz.seed", 42L);
+
+    private static final String REPORT = System.getProperty("fuzz.report");
+
+    private static final int CHECK_INTERVAL = 1000;
+
+    private static final int INSERT = 0;
+
+    private static final int DELETE = 1;
+
+    private static final int LOOKUP = 2;
+
+    private static final int DELETE_RANGE = 3;
+
+    private static final int MERGE_SORTED = 4;
+
+    private static final int COMPUTE = 5;
+
+    private enum Mode { PLAIN, APPEND, BUFFERED, FILTERED, POOLED }
+
+    @Test
+    public void mixedOperationsAtManyCapacities() {
+        for (int capacity : new int[] {2, 4, 6, 8, 16, 64}) {
+            run(Mode.PLAIN, capacity, OPERATIONS);
+        }
+    }
+
+    @Test
+    public void mixedOperationsInAppendMode() {
+        for (int capacity : new int[] {4, 16}) {
+            run(Mode.APPEND, capacity, OPERATIONS);
+        }
+    }
+
+    @Test
+    public void mixedOperationsWithWriteBuffers() {
+        for (int capacity : new int[] {4, 16}) {
+            run(Mode.BUFFERED, capacity, OPERATIONS);
+        }
+    }
+
+    @Test
+    public void mixedOperationsWithLeafFilters() {
+        for (int capacity : new int[] {4, 16}) {
+            run(Mode.FILTERED, capacity, OPERATIONS);
+        }
+    }
+
+    @Test
+    public void mixedOperationsWithNodePool() {
+        for (int capacity : new int[] {2, 4, 16}) {
+            run(Mode.POOLED, capacity, OPERATIONS);
+        }
+    }
+
+    private void run(Mode mode, int capacity, int count) {
+        long seed = SEED * 31 + capacity * 7 + mode.ordinal();
+        List<int[]> operations = generate(mode, count, capacity, seed);
+        long start = System.nanoTime();
+        String failure = execute(mode, capacity, operations);
+        long nanos = System.nanoTime() - start;
+        if (failure != null) {
+            List<int[]> shrunk = shrink(mode, capacity, operations);
+            fail(mode + " capacity " + capacity + ", seed " + seed + ": " +
+                 execute(mode, capacity, shrunk) + "\nafter " + describe(shrunk));
+        }
+        record(mode, capacity, count, nanos);
+    }
+
+    /**
+     * Random operations on a key range that keeps the tree at a few hundred
+     * to a few thousand keys, so splits and merges happen all the time. In
+     * append mode most inserts use increasing keys.
+     */
+    private static List<int[]> generate(Mode mode, int count, int capacity,
+                                        long seed) {
+        Random random = new Random(seed);
+        int keyRange = 50 * capacity;
+        int nextAppend = keyRange;
+        List<int[]> operations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int roll = random.nextInt(100);
+            int type = roll < 45 ? INSERT : roll < 78 ? DELETE : roll < 92 ? LOOKUP : roll < 97 ? COMPUTE
+                     : roll < 98 ? MERGE_SORTED : DELETE_RANGE;
+            int key;
+            if (mode == Mode.APPEND && type == INSERT && random.nextInt(4) > 0) {
+                key = nextAppend++;
+            } else if (mode == Mode.APPEND && type == DELETE) {
+                key = random.nextInt(nextAppend);
+            } else {
+                key = random.nextInt(keyRange);
+            }
+            operations.add(new int[] {type, key, random.nextInt(8 * capacity)});
+        }
+        return operations;
+    }
+
+    /**
+     * @return A description of the first difference, or {null}.
+     */
+    private static String execute(Mode mode, int capacity, List<int[]> operations) {
+        BPlusTree tree = new BPlusTree(capacity);
+        if (mode == Mode.APPEND) {
+            tree.setAppendOptimized(true);
+        } else if (mode == Mode.BUFFERED) {
+            tree.setWriteBufferSize(8);
+        } else if (mode == Mode.FILTERED) {
+            tree.setLeafFilters(true);
+            //writes look up old values for the snapshot while they descend
+            tree.beginRead();
+        } else if (mode == Mode.POOLED) {
+            tree.setNodePool(new NodePool(capacity, 16));
+        }
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                int type = operations.get(i)[0];
+                int key = operations.get(i)[1];
+                String actual;
+                String wanted;
+                if (type == INSERT) {
+                    String value = "v" + i;
+                    tree.insert(key, value);
+                    expected.put(key, value);
+                    actual = tree.lookup(key);
+                    wanted = value;
+                } else if (type == DELETE) {
+                    actual = tree.delete(key);
+                    wanted = expected.remove(key);
+                } else if (type == DELETE_RANGE) {
+                    int to = key + operations.get(i)[2];
+                    tree.deleteRange(key, to);
+                    expected.subMap(key, to).clear();
+                    actual = tree.lookup(key);
+                    wanted = expected.get(key);
+                } else if (type == MERGE_SORTED) {
+                    //every second key from key on
+                    TreeMap<Integer, String> batch = new TreeMap<>();
+                    for (int j = 0; j < operations.get(i)[2]; j++) {
+                        batch.put(key + 2 * j, "m" + i);
+                    }
+                    tree.mergeSorted(batch.entrySet().iterator());
+                    expected.putAll(batch);
+                    actual = tree.lookup(key);
+                    wanted = expected.get(key);
+                } else if (type == COMPUTE) {
+                    //append to the value, or delete every fourth time
+                    boolean remove = operations.get(i)[2] % 4 == 0;
+                    String suffix = "c" + i;
+                    actual = tree.compute(key, (k, value) ->
+                            remove ? null : value == null ? suffix : value + suffix);
+                    wanted = expected.compute(key, (k, value) ->
+                            remove ? null : value == null ? suffix : value + suffix);
+                } else {
+                    actual = tree.lookup(key);
+                    wanted = expected.get(key);
+                }
+                if (wanted == null ? actual != null : !wanted.equals(actual)) {
+                    return "operation " + i + " " + describe(operations.get(i)) +
+                           " returned " + actual + " instead of " + wanted;
+                }
+                if ((i + 1) % CHECK_INTERVAL == 0 || i == operations.size() - 1) {
+                    String difference = compare(tree, expected);
+                    if (difference != null) {
+                        return "after operation " + i + ": " + difference;
+                    }
+                }
+            }
+        } catch (RuntimeException | AssertionError e) {
+            return e.toString();
+        }
+        return null;
+    }
+
+    private static String compare(BPlusTree tree, TreeMap<Integer, String> expected) {
+        Iterator<Map.Entry<Integer, String>> actual = tree.scan(null, null);
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            if (!actual.hasNext()) {
+                return "scan ends before key " + entry.getKey();
+            }
+            Map.Entry<Integer, String> next = actual.next();
+            if (!next.equals(entry)) {
+                return "scan returned " + next + " instead of " + entry;
+            }
+        }
+        if (actual.hasNext()) {
+            return "scan returned extra entry " + actual.next();
+        }
+        List<String> violations = tree.verify();
+        return violations.isEmpty() ? null : violations.get(0);
+    }
+
+    /**
+     * Remove chunks of operations as long as the sequence still fails,
+     * halving the chunk size down to single operations.
+     */
+    private static List<int[]> shrink(Mode mode, int capacity, List<int[]> operations) {
+        List<int[]> current = operations;
+        for (int chunk = current.size() / 2; chunk >= 1; chunk /= 2) {
+            int start = 0;
+            while (start < current.size()) {
+                List<int[]> candidate = new ArrayList<>(current.subList(0, start));
+                candidate.addAll(current.subList(
+                        Math.min(start + chunk, current.size()), current.size()));
+                if (!candidate.isEmpty() && execute(mode, capacity, candidate) != null) {
+                    current = candidate;
+                } else {
+                    start += chunk;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static String describe(List<int[]> operations) {
+        StringBuilder builder = new StringBuilder();
+        for (int[] operation : operations) {
+            builder.append(describe(operation)).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static String describe(int[] operation) {
+        if (operation[0] == DELETE_RANGE) {
+            return "deleteRange(" + operation[1] + ", " +
+                   (operation[1] + operation[2]) + ")";
+        }
+        if (operation[0] == MERGE_SORTED) {
+            return "mergeSorted(" + operation[1] + ", " + operation[2] + " keys)";
+        }
+        if (operation[0] == COMPUTE) {
+            return "compute(" + operation[1] + ", " + operation[2] + ")";
+        }
+        String[] names = {"insert", "delete", "lookup"};
+        return names[operation[0]] + "(" + operation[1] + ")";
+    }
+
+    private static void record(Mode mode, int capacity, int count, long nanos) {
+        if (REPORT == null) {
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(REPORT, true))) {
+            out.printf("%d,%s,%d,%d,%.0f%n", System.currentTimeMillis(), mode,
+                       capacity, count, count / (nanos / 1e9));
+        } catch (IOException e) {
+            System.err.println("Cannot write fuzz report: " + e);
+        }
+    }
+
+}
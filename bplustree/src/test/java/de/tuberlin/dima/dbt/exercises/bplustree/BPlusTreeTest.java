@@ -1,7 +1,22 @@
 package de.tuberlin.dima.dbt.exercises.bplustree;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.rules.Timeout;
 
 import static de.tuberlin.dima.dbt.grading.bplustree.BPlusTreeMatcher.isTree;
@@ -9,6 +24,7 @@ import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 import org.junit.Ignore;
 
@@ -18,6 +34,9 @@ public class BPlusTreeTest {
     @Rule
     public Timeout globalTimeout = new Timeout(1000);
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private BPlusTree tree;
 
     ///// Lookup tests
@@ -455,4 +474,1040 @@ public class BPlusTreeTest {
         // then
         assertThat(value, is("EZw"));
      }
+
+    /**
+     * bulk build tests
+     *
+     */
+
+    @Test
+    public void buildFromUnsortedInput() {
+        // given
+        BPlusTreeBuilder builder = new BPlusTreeBuilder(CAPACITY);
+        // when
+        tree = builder.build(new int[] {9, 3, 7, 1, 10, 5, 2, 8, 4, 6},
+                             new String[] {"i", "c", "g", "a", "j", "e", "b",
+                                           "h", "d", "f"});
+        // then
+        assertThat(tree, isTree(newTree(newNode(keys(5, 9), nodes(
+            newLeaf(keys(1, 2, 3, 4), values("a", "b", "c", "d")),
+            newLeaf(keys(5, 6, 7, 8), values("e", "f", "g", "h")),
+            newLeaf(keys(9, 10), values("i", "j")))))));
+    }
+
+    @Test
+    public void buildSharesLastNodes() {
+        // given
+        BPlusTreeBuilder builder = new BPlusTreeBuilder(CAPACITY);
+        // when
+        tree = builder.build(new int[] {1, 2, 3, 4, 5, 3},
+                             new String[] {"a", "b", "x", "d", "e", "c"});
+        // then
+        assertThat(tree, isTree(newTree(newNode(keys(4), nodes(
+            newLeaf(keys(1, 2, 3), values("a", "b", "c")),
+            newLeaf(keys(4, 5), values("d", "e")))))));
+    }
+
+    @Test
+    public void buildParallelMatchesSequentialBuild() {
+        // given
+        int count = 200000;
+        int[] keys = new int[count];
+        String[] values = new String[count];
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            keys[i] = random.nextInt();
+            values[i] = String.valueOf(i);
+        }
+        BPlusTreeBuilder builder = new BPlusTreeBuilder(16);
+        // when
+        BPlusTree parallel = builder.buildParallel(keys, values);
+        // then
+        assertThat(parallel, isTree(builder.build(keys, values)));
+        assertThat(parallel.lookup(keys[count - 1]), is(values[count - 1]));
+    }
+
+    /**
+     * duplicate key tests
+     *
+     */
+
+    @Test
+    public void insertExistingKeyReplacesValue() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3, 4), values("a", "b", "c", "d")));
+        // when
+        tree.insert(2, "x");
+        // then
+        assertThat(tree, isTree(
+                newTree(newLeaf(keys(1, 2, 3, 4), values("a", "x", "c", "d")))));
+    }
+
+    @Test
+    public void upsertReturnsReplacedValue() {
+        // given
+        tree = newTree(newNode(keys(3), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4), values("c", "d")))));
+        // when
+        String replaced = tree.upsert(4, "x");
+        String inserted = tree.upsert(5, "e");
+        // then
+        assertThat(replaced, is("d"));
+        assertThat(inserted, is(nullValue()));
+        assertThat(tree, isTree(newTree(newNode(keys(3), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4, 5), values("c", "x", "e")))))));
+    }
+
+    @Test
+    public void multiValuedKeepsDuplicatesOutOfLeaves() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2), values("a", "b")));
+        tree.setMultiValued(true);
+        // when
+        for (int i = 0; i < 10; i++) {
+            tree.insert(2, "b" + i);
+        }
+        boolean deleted = tree.delete(2, "b");
+        // then
+        assertThat(deleted, is(true));
+        assertThat(tree.lookup(2), is("b0"));
+        assertThat(tree.lookupAll(2).size(), is(10));
+        assertThat(tree, isTree(newTree(newLeaf(keys(1, 2), values("a", "b0")))));
+    }
+
+    @Test
+    public void deleteOverflowValueThenLeafValue() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2), values("a", "b")));
+        tree.setMultiValued(true);
+        tree.insert(2, "c");
+        // when
+        boolean overflowDeleted = tree.delete(2, "c");
+        boolean leafDeleted = tree.delete(2, "b");
+        // then
+        assertThat(overflowDeleted, is(true));
+        assertThat(leafDeleted, is(true));
+        assertThat(tree.lookupAll(2).isEmpty(), is(true));
+        assertThat(tree, isTree(newTree(newLeaf(keys(1), values("a")))));
+        tree.setMultiValued(false);
+    }
+
+    /**
+     * write buffer tests
+     *
+     */
+
+    @Test
+    public void bufferedWritesAreVisibleBeforeFlush() {
+        // given
+        tree = newTree(newNode(keys(3), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4), values("c", "d")))));
+        tree.setWriteBufferSize(8);
+        // when
+        tree.insert(5, "e");
+        tree.insert(0, "z");
+        tree.insert(2, "x");
+        String deleted = tree.delete(1);
+        // then
+        assertThat(deleted, is("a"));
+        assertThat(tree.lookup(1), is(nullValue()));
+        assertThat(tree.lookup(2), is("x"));
+        assertThat(tree.lookup(5), is("e"));
+        assertThat(tree, isTree(newTree(newNode(keys(3), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4), values("c", "d")))))));
+    }
+
+    @Test
+    public void flushAppliesBufferedWrites() {
+        // given
+        tree = newTree(newNode(keys(3), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4), values("c", "d")))));
+        tree.setWriteBufferSize(8);
+        tree.insert(5, "e");
+        tree.insert(0, "z");
+        tree.insert(2, "x");
+        tree.delete(1);
+        // when
+        tree.flushWriteBuffers();
+        // then
+        assertThat(tree, isTree(newTree(newNode(keys(3), nodes(
+                newLeaf(keys(0, 2), values("z", "x")),
+                newLeaf(keys(3, 4, 5), values("c", "d", "e")))))));
+    }
+
+    @Test
+    public void bufferedInsertsMatchMap() {
+        // given
+        tree = newEmptyTree();
+        tree.setWriteBufferSize(16);
+        Map<Integer, String> expected = new HashMap<>();
+        Random random = new Random(7);
+        // when
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextInt(2000);
+            tree.insert(key, "v" + i);
+            expected.put(key, "v" + i);
+        }
+        // then
+        for (int key = 0; key < 2000; key++) {
+            assertThat(tree.lookup(key), is(expected.get(key)));
+        }
+        tree.flushWriteBuffers();
+        tree.setWriteBufferSize(0);
+        for (int key = 0; key < 2000; key++) {
+            assertThat(tree.lookup(key), is(expected.get(key)));
+        }
+    }
+
+    /**
+     * lookup cache tests
+     *
+     */
+
+    @Test
+    public void cachedLookupSeesWrites() {
+        // given
+        tree = newTree(newNode(keys(3), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4), values("c", "d")))));
+        tree.setLookupCache(new ClockLookupCache(2));
+        tree.lookup(4);
+        tree.lookup(4);
+        // when
+        tree.insert(4, "x");
+        String afterInsert = tree.lookup(4);
+        tree.delete(4);
+        String afterDelete = tree.lookup(4);
+        // then
+        assertThat(afterInsert, is("x"));
+        assertThat(afterDelete, is(nullValue()));
+        assertThat(tree.getLookupCache().hits(), is(1L));
+        assertThat(tree.getLookupCache().misses(), is(3L));
+    }
+
+    @Test
+    public void clockCacheGivesReferencedEntriesSecondChance() {
+        // given
+        LookupCache cache = new ClockLookupCache(2);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.put(3, "c");
+        cache.get(3);
+        // when
+        cache.put(4, "d");
+        // then
+        assertThat(cache.get(3), is("c"));
+        assertThat(cache.get(4), is("d"));
+        assertThat(cache.get(1), is(nullValue()));
+        assertThat(cache.get(2), is(nullValue()));
+    }
+
+    /**
+     * append optimization tests
+     *
+     */
+
+    @Test
+    public void appendFillsLeaves() {
+        // given
+        tree = newEmptyTree();
+        tree.setAppendOptimized(true);
+        // when
+        for (int i = 1; i <= 10; i++) {
+            tree.insert(i, String.valueOf(i));
+        }
+        // then
+        assertThat(tree, isTree(newTree(newNode(keys(5, 9), nodes(
+                newLeaf(keys(1, 2, 3, 4), values("1", "2", "3", "4")),
+                newLeaf(keys(5, 6, 7, 8), values("5", "6", "7", "8")),
+                newLeaf(keys(9, 10), values("9", "10")))))));
+    }
+
+    @Test
+    public void appendSplitsFullInnerNodes() {
+        // given
+        tree = newEmptyTree();
+        tree.setAppendOptimized(true);
+        // when
+        for (int i = 1; i <= 21; i++) {
+            tree.insert(i, "v");
+        }
+        // then
+        assertThat(tree, isTree(newTree(newNode(keys(21), nodes(
+                newNode(keys(5, 9, 13, 17), nodes(
+                        newLeaf(keys(1, 2, 3, 4), values("v", "v", "v", "v")),
+                        newLeaf(keys(5, 6, 7, 8), values("v", "v", "v", "v")),
+                        newLeaf(keys(9, 10, 11, 12), values("v", "v", "v", "v")),
+                        newLeaf(keys(13, 14, 15, 16), values("v", "v", "v", "v")),
+                        newLeaf(keys(17, 18, 19, 20), values("v", "v", "v", "v")))),
+                newNode(keys(), nodes(
+                        newLeaf(keys(21), values("v")))))))));
+    }
+
+    @Test
+    public void appendAfterInsertInTheMiddle() {
+        // given
+        tree = newEmptyTree();
+        tree.setAppendOptimized(true);
+        for (int i = 2; i <= 12; i += 2) {
+            tree.insert(i, "v");
+        }
+        // when
+        tree.insert(5, "w");
+        tree.insert(13, "x");
+        // then
+        assertThat(tree, isTree(newTree(newNode(keys(5, 10), nodes(
+                newLeaf(keys(2, 4), values("v", "v")),
+                newLeaf(keys(5, 6, 8), values("w", "v", "v")),
+                newLeaf(keys(10, 12, 13), values("v", "v", "x")))))));
+    }
+
+    /**
+     * snapshot tests
+     *
+     */
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        // given
+        tree = newTree(newNode(keys(3, 5), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4), values("c", "d")),
+                newLeaf(keys(5, 6, 7), values("e", "f", "\u00e9t\u00e9")))));
+        Path snapshot = folder.newFile("tree.snapshot").toPath();
+        // when
+        tree.writeSnapshot(snapshot);
+        BPlusTree loaded = BPlusTree.loadSnapshot(snapshot);
+        // then
+        assertThat(loaded, isTree(tree));
+        assertThat(loaded.getCapacity(), is(CAPACITY));
+    }
+
+    @Test
+    public void snapshotKeepsMultipleValues() throws IOException {
+        // given
+        tree = newEmptyTree();
+        tree.setMultiValued(true);
+        tree.insert(1, "a");
+        tree.insert(1, "b");
+        Path snapshot = folder.newFile("tree.snapshot").toPath();
+        // when
+        tree.writeSnapshot(snapshot);
+        BPlusTree loaded = BPlusTree.loadSnapshot(snapshot);
+        // then
+        assertThat(loaded.lookupAll(1), is(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void snapshotKeepsAppendOptimization() throws IOException {
+        // given
+        tree = newEmptyTree();
+        tree.setAppendOptimized(true);
+        for (int i = 1; i <= 21; i++) {
+            tree.insert(i, "v");
+        }
+        Path snapshot = folder.newFile("tree.snapshot").toPath();
+        // when
+        tree.writeSnapshot(snapshot);
+        BPlusTree loaded = BPlusTree.loadSnapshot(snapshot);
+        // then
+        assertThat(loaded.isAppendOptimized(), is(true));
+        assertThat(loaded.verify().isEmpty(), is(true));
+        assertThat(loaded, isTree(tree));
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptSnapshotIsRejected() throws IOException {
+        // given
+        tree = newTree(newLeaf(keys(1, 2), values("a", "b")));
+        Path snapshot = folder.newFile("tree.snapshot").toPath();
+        tree.writeSnapshot(snapshot);
+        byte[] bytes = Files.readAllBytes(snapshot);
+        bytes[bytes.length - 20] ^= 1;
+        Files.write(snapshot, bytes);
+        // when
+        BPlusTree.loadSnapshot(snapshot);
+    }
+
+    @Test
+    public void oversizedCountsInSnapshotAreRejected() throws IOException {
+        // given
+        tree = newTree(newLeaf(keys(1), values("a")));
+        Path snapshot = folder.newFile("tree.snapshot").toPath();
+        tree.writeSnapshot(snapshot);
+        byte[] bytes = Files.readAllBytes(snapshot);
+        //after the header and its CRC: node count, key count, key, value length
+        for (int offset : new int[] {28, 40}) {
+            byte[] corrupt = bytes.clone();
+            ByteBuffer.wrap(corrupt).putInt(offset, Integer.MAX_VALUE - 8);
+            Files.write(snapshot, corrupt);
+            // when
+            try {
+                BPlusTree.loadSnapshot(snapshot);
+                fail("Snapshot with a corrupt count at " + offset + " was loaded");
+            } catch (IOException e) {
+                // then
+                assertThat(e.getMessage().contains("exceeds") ||
+                           e.getMessage().contains("Invalid"), is(true));
+            }
+        }
+    }
+
+    /**
+     * scan tests
+     *
+     */
+
+    @Test
+    public void scanAcrossLeaves() {
+        // given
+        tree = newTree(newNode(keys(3, 5), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4), values("c", "d")),
+                newLeaf(keys(5, 6, 7), values("e", "f", "g")))));
+        // when
+        Iterator<Map.Entry<Integer, String>> entries = tree.scan(2, 6);
+        // then
+        StringBuilder scanned = new StringBuilder();
+        while (entries.hasNext()) {
+            scanned.append(entries.next().getValue());
+        }
+        assertThat(scanned.toString(), is("bcde"));
+    }
+
+    /**
+     * snapshot isolation tests
+     *
+     */
+
+    @Test
+    public void snapshotLookupIgnoresLaterWrites() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c")));
+        ReadSnapshot snapshot = tree.beginRead();
+        // when
+        tree.insert(1, "x");
+        tree.delete(2);
+        tree.insert(4, "d");
+        // then
+        assertThat(tree.lookup(1, snapshot), is("a"));
+        assertThat(tree.lookup(2, snapshot), is("b"));
+        assertThat(tree.lookup(4, snapshot), is(nullValue()));
+        assertThat(tree.lookup(1), is("x"));
+        snapshot.close();
+        assertThat(tree.beginRead().getVersion(), is(3L));
+    }
+
+    @Test
+    public void snapshotScanInterleavedWithSplits() {
+        // given
+        tree = newEmptyTree();
+        for (int i = 0; i < 20; i += 2) {
+            tree.insert(i, "old" + i);
+        }
+        ReadSnapshot snapshot = tree.beginRead();
+        Iterator<Map.Entry<Integer, String>> entries = tree.scan(null, null, snapshot);
+        // when
+        StringBuilder scanned = new StringBuilder();
+        int written = 1;
+        while (entries.hasNext()) {
+            scanned.append(entries.next().getKey()).append(' ');
+            tree.insert(written, "new");
+            tree.delete(written + 1);
+            written += 2;
+        }
+        // then
+        assertThat(scanned.toString(), is("0 2 4 6 8 10 12 14 16 18 "));
+    }
+
+    /**
+     * compressed leaf tests
+     *
+     */
+
+    @Test
+    public void compressedLeavesAnswerLookupsAndScans() {
+        // given
+        tree = newTree(newNode(keys(3), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4, 5), values("c", "c", "c")))));
+        // when
+        tree.compressLeaves();
+        // then
+        Node[] children = ((InnerNode) tree.rootNode()).getChildren();
+        assertThat(((CompressedLeafNode) children[1]).isCompressed(), is(true));
+        assertThat(tree.lookup(4), is("c"));
+        assertThat(tree.lookup(6), is(nullValue()));
+        StringBuilder scanned = new StringBuilder();
+        tree.scan(2, null).forEachRemaining(entry -> scanned.append(entry.getValue()));
+        assertThat(scanned.toString(), is("bccc"));
+        assertThat(((CompressedLeafNode) children[1]).isCompressed(), is(true));
+    }
+
+    @Test
+    public void writeDecompressesLeaf() {
+        // given
+        tree = newTree(newNode(keys(3), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4, 5), values("c", "d", "e")))));
+        tree.compressLeaves();
+        // when
+        tree.insert(6, "f");
+        // then
+        assertThat(tree, isTree(newTree(newNode(keys(3), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4, 5, 6), values("c", "d", "e", "f")))))));
+    }
+
+    @Test
+    public void compressKeysAcrossFullRange() {
+        // given
+        LeafNode leaf = new LeafNode(keys(Integer.MIN_VALUE, -7, 0, 99, Integer.MAX_VALUE),
+                                     values("a", "b", "a", null, "b"), 6);
+        // when
+        CompressedLeafNode compressed = CompressedLeafNode.compress(leaf);
+        // then
+        assertThat(compressed.find(Integer.MIN_VALUE), is(0));
+        assertThat(compressed.find(99), is(3));
+        assertThat(compressed.find(Integer.MAX_VALUE), is(4));
+        assertThat(compressed.find(1), is(-1));
+        assertThat(compressed.valueAt(2), is("a"));
+        assertThat(compressed.valueAt(3), is(nullValue()));
+        assertThat(compressed.keyAt(5), is(nullValue()));
+        assertThat(Arrays.asList(compressed.getKeys()), is(Arrays.asList(
+                Integer.MIN_VALUE, -7, 0, 99, Integer.MAX_VALUE, null)));
+        assertThat(compressed.isCompressed(), is(false));
+    }
+
+    /**
+     * verification tests
+     *
+     */
+
+    @Test
+    public void verifyValidTree() {
+        // given
+        tree = newEmptyTree();
+        for (int i = 0; i < 500; i++) {
+            tree.insert((i * 7919) % 500, "v" + i);
+        }
+        // when
+        List<String> violations = tree.verify();
+        // then
+        assertThat(violations, is(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void verifyFindsWrongSeparator() {
+        // given
+        tree = newTree(newNode(keys(3), nodes(
+                newLeaf(keys(1, 4), values("a", "d")),
+                newLeaf(keys(3, 5), values("c", "e")))));
+        // when
+        List<String> violations = tree.verify();
+        // then
+        assertThat(violations, is(Arrays.asList(
+                "Leaf [-inf, 3) at depth 1 key 4 is outside of [-inf, 3)")));
+    }
+
+    @Test
+    public void verifyFindsUnderfullNodeAndUnevenDepth() {
+        // given
+        tree = newTree(newNode(keys(3, 5), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newNode(keys(4), nodes(
+                        newLeaf(keys(3), values("c")),
+                        newLeaf(keys(4), values("d")))),
+                newLeaf(keys(6, 5), values("f", "e")))));
+        // when
+        List<String> violations = tree.verify();
+        // then
+        assertThat(violations.size(), is(6));
+        assertThat(violations.get(0), is(
+                "Inner node [-inf, inf) at depth 0 mixes leaf and inner children"));
+        assertThat(violations.get(5), is(
+                "Inner node [-inf, inf) at depth 0 leaves are on different depths"));
+    }
+
+    /**
+     * range delete tests
+     *
+     */
+
+    @Test
+    public void deleteRangeUnlinksCoveredLeaves() {
+        // given
+        tree = newTree(newNode(keys(3, 5, 7), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4), values("c", "d")),
+                newLeaf(keys(5, 6), values("e", "f")),
+                newLeaf(keys(7, 8, 9), values("g", "h", "i")))));
+        // when
+        tree.deleteRange(3, 7);
+        // then
+        assertThat(tree, isTree(newTree(newNode(keys(7), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(7, 8, 9), values("g", "h", "i")))))));
+    }
+
+    @Test
+    public void deleteRangeWithOpenBounds() {
+        // given
+        tree = newEmptyTree();
+        for (int i = 0; i < 1000; i++) {
+            tree.insert(i, "v" + i);
+        }
+        // when
+        tree.deleteRange(null, 100);
+        tree.deleteRange(900, null);
+        tree.deleteRange(300, 600);
+        // then
+        assertThat(tree.verify(), is(Collections.<String>emptyList()));
+        for (int i = 0; i < 1000; i++) {
+            boolean kept = (i >= 100 && i < 300) || (i >= 600 && i < 900);
+            assertThat(tree.lookup(i), is(kept ? "v" + i : null));
+        }
+    }
+
+    @Test
+    public void deleteRangeOfEverything() {
+        // given
+        tree = newEmptyTree();
+        for (int i = 0; i < 100; i++) {
+            tree.insert(i, "v" + i);
+        }
+        // when
+        tree.deleteRange(-5, 100);
+        // then
+        assertThat(tree, isTree(newTree(newLeaf(keys(), values()))));
+        assertThat(tree.scan(null, null).hasNext(), is(false));
+    }
+
+    /**
+     * sorted merge tests
+     *
+     */
+
+    @Test
+    public void mergeSortedSplitsTouchedLeaves() {
+        // given
+        tree = newTree(newNode(keys(3), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4, 5), values("c", "d", "e")))));
+        TreeMap<Integer, String> batch = new TreeMap<>();
+        batch.put(0, "z");
+        batch.put(4, "D");
+        batch.put(6, "f");
+        batch.put(7, "g");
+        batch.put(8, "h");
+        // when
+        tree.mergeSorted(batch.entrySet().iterator());
+        // then
+        assertThat(tree, isTree(newTree(newNode(keys(3, 6), nodes(
+                newLeaf(keys(0, 1, 2), values("z", "a", "b")),
+                newLeaf(keys(3, 4, 5), values("c", "D", "e")),
+                newLeaf(keys(6, 7, 8), values("f", "g", "h")))))));
+    }
+
+    @Test
+    public void mergeSortedMatchesInsert() {
+        // given
+        tree = newEmptyTree();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            int key = random.nextInt(10000);
+            tree.insert(key, "a" + i);
+            expected.put(key, "a" + i);
+        }
+        TreeMap<Integer, String> batch = new TreeMap<>();
+        for (int i = 0; i < 5000; i++) {
+            batch.put(random.nextInt(12000) - 1000, "b" + i);
+        }
+        expected.putAll(batch);
+        // when
+        tree.mergeSorted(batch.entrySet().iterator());
+        // then
+        assertThat(tree.verify(), is(Collections.<String>emptyList()));
+        Iterator<Map.Entry<Integer, String>> actual = tree.scan(null, null);
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            assertThat(actual.next(), is(entry));
+        }
+        assertThat(actual.hasNext(), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeSortedRejectsUnsortedBatch() {
+        // given
+        tree = newEmptyTree();
+        Map<Integer, String> batch = new LinkedHashMap<>();
+        batch.put(2, "b");
+        batch.put(1, "a");
+        // when
+        tree.mergeSorted(batch.entrySet().iterator());
+    }
+
+    /**
+     * split and concatenate tests
+     *
+     */
+
+    @Test
+    public void splitAtCutsPathToKey() {
+        // given
+        tree = newTree(newNode(keys(3, 5), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4), values("c", "d")),
+                newLeaf(keys(5, 6, 7), values("e", "f", "g")))));
+        // when
+        BPlusTree right = tree.splitAt(4);
+        // then
+        assertThat(tree, isTree(newTree(newLeaf(
+                keys(1, 2, 3), values("a", "b", "c")))));
+        assertThat(right, isTree(newTree(newLeaf(
+                keys(4, 5, 6, 7), values("d", "e", "f", "g")))));
+    }
+
+    @Test
+    public void concatHangsLowerTreeIntoEdge() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2), values("a", "b")));
+        BPlusTree right = newTree(newNode(keys(5), nodes(
+                newLeaf(keys(3, 4), values("c", "d")),
+                newLeaf(keys(5, 6), values("e", "f")))));
+        // when
+        BPlusTree joined = BPlusTree.concat(tree, right);
+        // then
+        assertThat(joined, isTree(newTree(newNode(keys(3, 5), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4), values("c", "d")),
+                newLeaf(keys(5, 6), values("e", "f")))))));
+        assertThat(tree.lookup(1), is(nullValue()));
+    }
+
+    @Test
+    public void splitAtAndConcatRoundTrip() {
+        // given
+        tree = newEmptyTree();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 3000; i++) {
+            int key = random.nextInt(100000);
+            tree.insert(key, "v" + i);
+            expected.put(key, "v" + i);
+        }
+        // when
+        BPlusTree middle = tree.splitAt(20000);
+        BPlusTree right = middle.splitAt(20050);
+        // then
+        assertThat(middle.verify(), is(Collections.<String>emptyList()));
+        assertThat(right.verify(), is(Collections.<String>emptyList()));
+        assertThat(middle.scan(null, null).next().getKey(),
+                   is(expected.ceilingKey(20000)));
+        tree = BPlusTree.concat(BPlusTree.concat(tree, middle), right);
+        assertThat(tree.verify(), is(Collections.<String>emptyList()));
+        Iterator<Map.Entry<Integer, String>> actual = tree.scan(null, null);
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            assertThat(actual.next(), is(entry));
+        }
+        assertThat(actual.hasNext(), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void concatRejectsOverlappingTrees() {
+        // given
+        tree = newTree(newLeaf(keys(1, 5), values("a", "e")));
+        BPlusTree right = newTree(newLeaf(keys(3, 4), values("c", "d")));
+        // when
+        BPlusTree.concat(tree, right);
+    }
+
+    /**
+     * tree diff tests
+     *
+     */
+
+    @Test
+    public void diffOfEqualTreesIsEmpty() {
+        // given
+        tree = newEmptyTree();
+        BPlusTree replica = newEmptyTree();
+        for (int i = 0; i < 1000; i++) {
+            tree.insert((i * 7919) % 1000, "v" + i);
+            replica.insert((i * 7919) % 1000, "v" + i);
+        }
+        // when
+        List<Integer> keys = tree.diff(replica);
+        // then
+        assertThat(keys, is(Collections.<Integer>emptyList()));
+        assertThat(tree.getRootHash(), is(replica.getRootHash()));
+    }
+
+    @Test
+    public void diffFindsChangedKeysAfterLaterWrites() {
+        // given
+        tree = newEmptyTree();
+        BPlusTree replica = newEmptyTree();
+        for (int i = 0; i < 1000; i++) {
+            tree.insert(i, "v" + i);
+            replica.insert(i, "v" + i);
+        }
+        tree.diff(replica);
+        // when
+        tree.insert(17, "changed");
+        tree.delete(500);
+        replica.insert(2000, "new");
+        List<Integer> keys = tree.diff(replica);
+        // then
+        assertThat(keys, is(Arrays.asList(17, 500, 2000)));
+    }
+
+    @Test
+    public void diffOfTreesWithDifferentShapes() {
+        // given
+        tree = newEmptyTree();
+        int[] keys = new int[1000];
+        String[] values = new String[1000];
+        for (int i = 0; i < 1000; i++) {
+            tree.insert(999 - i, "v" + (999 - i));
+            keys[i] = i;
+            values[i] = "v" + i;
+        }
+        values[321] = "changed";
+        BPlusTree built = new BPlusTreeBuilder(CAPACITY).build(keys, values);
+        // when
+        List<Integer> changed = tree.diff(built);
+        // then
+        assertThat(changed, is(Collections.singletonList(321)));
+    }
+
+    /**
+     * atomic update tests
+     *
+     */
+
+    @Test
+    public void computeCountsInPlace() {
+        // given
+        tree = newEmptyTree();
+        // when
+        for (int i = 0; i < 100; i++) {
+            tree.compute(i % 10, (key, value) ->
+                    value == null ? "1" : String.valueOf(Integer.parseInt(value) + 1));
+        }
+        // then
+        for (int key = 0; key < 10; key++) {
+            assertThat(tree.lookup(key), is("10"));
+        }
+        assertThat(tree.verify(), is(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void computeToNullDeletes() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c")));
+        // when
+        String value = tree.compute(2, (key, oldValue) -> null);
+        // then
+        assertThat(value, is(nullValue()));
+        assertThat(tree, isTree(newTree(newLeaf(keys(1, 3), values("a", "c")))));
+    }
+
+    @Test
+    public void computeEqualValueWritesNothing() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c")));
+        ChangeFeed feed = new ChangeFeed(16);
+        tree.setChangeFeed(feed);
+        int modCount = tree.getModCount();
+        // when
+        tree.compute(2, (key, oldValue) -> new StringBuilder("b").toString());
+        // then
+        assertThat(tree.getModCount(), is(modCount));
+        assertThat(feed.getPublishedSequence(), is(0L));
+    }
+
+    @Test
+    public void computeIfAbsentAndPutIfAbsentKeepExistingValues() {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")))));
+        // when
+        String existing = tree.computeIfAbsent(2, key -> "x");
+        String added = tree.computeIfAbsent(5, key -> "e");
+        String stored = tree.putIfAbsent(1, "y");
+        String absent = tree.putIfAbsent(6, "f");
+        // then
+        assertThat(existing, is("b"));
+        assertThat(added, is("e"));
+        assertThat(stored, is("a"));
+        assertThat(absent, is(nullValue()));
+        assertThat(tree, isTree(newTree(newNode(
+                keys(3),
+                nodes(newLeaf(keys(1, 2), values("a", "b")),
+                      newLeaf(keys(3, 4, 5, 6), values("c", "d", "e", "f")))))));
+    }
+
+    @Test
+    public void replaceOnlyMatchingValue() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2), values("a", "b")));
+        // when
+        boolean replaced = tree.replace(1, "a", "x");
+        boolean mismatch = tree.replace(2, "a", "y");
+        boolean missing = tree.replace(3, "a", "z");
+        // then
+        assertThat(replaced, is(true));
+        assertThat(mismatch, is(false));
+        assertThat(missing, is(false));
+        assertThat(tree, isTree(newTree(newLeaf(keys(1, 2), values("x", "b")))));
+    }
+
+    @Test
+    public void computeWithWriteBuffers() {
+        // given
+        tree = newEmptyTree();
+        tree.setWriteBufferSize(4);
+        for (int i = 0; i < 100; i++) {
+            tree.insert(i, "v" + i);
+        }
+        // when
+        tree.compute(42, (key, value) -> value + "!");
+        tree.compute(43, (key, value) -> null);
+        tree.putIfAbsent(200, "new");
+        // then
+        assertThat(tree.lookup(42), is("v42!"));
+        assertThat(tree.lookup(43), is(nullValue()));
+        assertThat(tree.lookup(200), is("new"));
+        assertThat(tree.verify(), is(Collections.<String>emptyList()));
+    }
+
+    /**
+     * leaf filter tests
+     *
+     */
+
+    @Test
+    public void leafFiltersRejectMissingKeys() {
+        // given
+        tree = newEmptyTree();
+        tree.setLeafFilters(true);
+        for (int i = 0; i < 1000; i += 2) {
+            tree.insert(i, "v" + i);
+        }
+        // when
+        int found = 0;
+        for (int i = 0; i < 1000; i++) {
+            found += tree.lookup(i) != null ? 1 : 0;
+        }
+        // then
+        assertThat(found, is(500));
+        assertThat(tree.lookup(998), is("v998"));
+        assertThat(tree.lookup(999), is(nullValue()));
+    }
+
+    @Test
+    public void leafFiltersFollowWrites() {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")))));
+        tree.setLeafFilters(true);
+        assertThat(tree.lookup(5), is(nullValue()));
+        assertThat(tree.lookup(2), is("b"));
+        // when
+        tree.insert(5, "e");
+        tree.delete(2);
+        tree.compressLeaves();
+        // then
+        assertThat(tree.lookup(5), is("e"));
+        assertThat(tree.lookup(2), is(nullValue()));
+        tree.insert(2, "x");
+        assertThat(tree.lookup(2), is("x"));
+    }
+
+    @Test
+    public void leafFiltersFollowWritesWithOpenSnapshot() {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")))));
+        tree.setLeafFilters(true);
+        ReadSnapshot snapshot = tree.beginRead();
+        // when
+        tree.putIfAbsent(11, "y");
+        tree.compute(2, (key, value) -> null);
+        tree.compute(2, (key, value) -> "b");
+        tree.computeIfAbsent(0, key -> "z");
+        // then
+        assertThat(tree.lookup(11), is("y"));
+        assertThat(tree.lookup(2), is("b"));
+        assertThat(tree.lookup(0), is("z"));
+        assertThat(tree.lookup(2, snapshot), is("b"));
+        assertThat(tree.lookup(11, snapshot), is(nullValue()));
+        snapshot.close();
+    }
+
+    @Test
+    public void leafFiltersFollowMergeWithOpenSnapshot() {
+        // given
+        tree = newTree(newNode(keys(5),
+                               nodes(newLeaf(keys(1, 4), values("a", "d")),
+                                     newLeaf(keys(5, 6), values("e", "f")))));
+        tree.setLeafFilters(true);
+        ReadSnapshot snapshot = tree.beginRead();
+        TreeMap<Integer, String> batch = new TreeMap<>();
+        batch.put(2, "b");
+        batch.put(3, "c");
+        // when
+        tree.mergeSorted(batch.entrySet().iterator());
+        // then
+        assertThat(tree.lookup(2), is("b"));
+        assertThat(tree.lookup(3), is("c"));
+        assertThat(tree.lookup(2, snapshot), is(nullValue()));
+        assertThat(tree.lookup(3, snapshot), is(nullValue()));
+        snapshot.close();
+    }
+
+    /**
+     * node pool tests
+     *
+     */
+
+    @Test
+    public void mergedNodesAreReusedBySplits() {
+        // given
+        tree = newEmptyTree();
+        NodePool pool = new NodePool(CAPACITY, 8);
+        tree.setNodePool(pool);
+        for (int i = 0; i < 100; i++) {
+            tree.insert(i, "v" + i);
+        }
+        // when
+        for (int i = 0; i < 50; i++) {
+            tree.delete(i);
+        }
+        int released = pool.size();
+        for (int i = 0; i < 50; i++) {
+            tree.insert(i, "w" + i);
+        }
+        // then
+        assertThat(released > 0, is(true));
+        assertThat(pool.size() < released, is(true));
+        for (int i = 0; i < 100; i++) {
+            assertThat(tree.lookup(i), is((i < 50 ? "w" : "v") + i));
+        }
+        assertThat(tree.verify(), is(Collections.<String>emptyList()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nodePoolNeedsSameCapacity() {
+        newEmptyTree().setNodePool(new NodePool(CAPACITY * 2, 8));
+    }
 }
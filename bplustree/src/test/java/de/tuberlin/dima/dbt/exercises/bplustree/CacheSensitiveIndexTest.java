@@ -0,0 +1,98 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import org.junit.Test;
+
+import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class CacheSensitiveIndexTest {
+
+    @Test
+    public void lookupInSmallTree() {
+        // given
+        BPlusTree tree = newTree(newNode(keys(3, 5), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4), values("c", "d")),
+                newLeaf(keys(5, 6), values("e", "f")))));
+        // when
+        CacheSensitiveIndex index = CacheSensitiveIndex.build(tree);
+        // then
+        assertThat(index.lookup(1), is("a"));
+        assertThat(index.lookup(4), is("d"));
+        assertThat(index.lookup(5), is("e"));
+        assertThat(index.lookup(0), is(nullValue()));
+        assertThat(index.lookup(7), is(nullValue()));
+    }
+
+    @Test
+    public void lookupInDeepTree() {
+        // given
+        BPlusTree tree = new BPlusTree(CAPACITY);
+        for (int i = 0; i < 1000; i++) {
+            tree.insert((i * 7919) % 1000 * 2, "v" + i);
+        }
+        tree.compressLeaves();
+        // when
+        CacheSensitiveIndex index = CacheSensitiveIndex.build(tree);
+        // then
+        for (int key = -1; key <= 2000; key++) {
+            assertThat(index.lookup(key), is(tree.lookup(key)));
+        }
+        assertThat(index.lookup(Integer.MAX_VALUE), is(nullValue()));
+        assertThat(index.lookup(Integer.MIN_VALUE), is(nullValue()));
+    }
+
+    @Test
+    public void fallBackAfterWrite() {
+        // given
+        BPlusTree tree = newTree(newLeaf(keys(1, 2), values("a", "b")));
+        CacheSensitiveIndex index = CacheSensitiveIndex.build(tree);
+        // when
+        tree.insert(3, "c");
+        // then
+        assertThat(index.isStale(), is(true));
+        assertThat(index.lookup(3), is("c"));
+        assertThat(CacheSensitiveIndex.build(tree).isStale(), is(false));
+    }
+
+    @Test
+    public void staleIndexFollowsSplitsAndDeletes() {
+        // given
+        BPlusTree tree = new BPlusTree(CAPACITY);
+        for (int i = 0; i < 200; i += 2) {
+            tree.insert(i, "v" + i);
+        }
+        CacheSensitiveIndex index = CacheSensitiveIndex.build(tree);
+        // when
+        for (int i = 1; i < 200; i += 2) {
+            tree.insert(i, "w" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            tree.delete(i);
+        }
+        // then
+        assertThat(index.isStale(), is(true));
+        for (int key = -1; key <= 200; key++) {
+            assertThat(index.lookup(key), is(tree.lookup(key)));
+        }
+        assertThat(index.lookup(50), is(nullValue()));
+        assertThat(index.lookup(151), is("w151"));
+    }
+
+    @Test
+    public void inPlaceUpdateMakesIndexStale() {
+        // given
+        BPlusTree tree = newTree(newNode(keys(3), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4), values("c", "d")))));
+        CacheSensitiveIndex index = CacheSensitiveIndex.build(tree);
+        // when
+        tree.insert(4, "D");
+        // then
+        assertThat(index.isStale(), is(true));
+        assertThat(index.lookup(4), is("D"));
+    }
+
+}
@@ -0,0 +1,208 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ChangeFeedTest {
+
+    /**
+     * Stand-in for a network transport, every batch is serialized and read
+     * back.
+     */
+    private static class SerializingSource implements ChangeSource {
+
+        private final ChangeSource source;
+
+        SerializingSource(ChangeSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public List<ChangeEvent> poll(int maxEvents, long timeout, TimeUnit unit)
+                throws InterruptedException {
+            List<ChangeEvent> events = source.poll(maxEvents, timeout, unit);
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(events.size());
+                for (ChangeEvent event : events) {
+                    event.writeTo(out);
+                }
+                DataInputStream in = new DataInputStream(
+                        new ByteArrayInputStream(bytes.toByteArray()));
+                List<ChangeEvent> received = new ArrayList<>();
+                for (int count = in.readInt(); count > 0; count--) {
+                    received.add(ChangeEvent.readFrom(in));
+                }
+                return received;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    @Test
+    public void publishWritesInOrder() throws Exception {
+        // given
+        BPlusTree tree = new BPlusTree(CAPACITY);
+        ChangeFeed feed = new ChangeFeed(16);
+        tree.setChangeFeed(feed);
+        ChangeFeed.Subscription subscription = feed.subscribe();
+        // when
+        tree.insert(1, "a");
+        tree.upsert(2, "b");
+        tree.delete(3);
+        tree.delete(1);
+        tree.deleteRange(0, 10);
+        // then
+        List<ChangeEvent> events = subscription.poll(10, 0, TimeUnit.SECONDS);
+        assertThat(events.size(), is(4));
+        assertThat(events.get(0), is(new ChangeEvent(
+                1, ChangeEvent.Type.INSERT, 1, null, "a")));
+        assertThat(events.get(1), is(new ChangeEvent(
+                2, ChangeEvent.Type.UPSERT, 2, null, "b")));
+        assertThat(events.get(2), is(new ChangeEvent(
+                3, ChangeEvent.Type.DELETE, 1, null, null)));
+        assertThat(events.get(3), is(new ChangeEvent(
+                4, ChangeEvent.Type.DELETE_RANGE, 0, 10, null)));
+        assertThat(subscription.getLag(), is(0L));
+    }
+
+    @Test
+    public void serializeLongValues() throws Exception {
+        // given
+        String value = "\u00e4".repeat(70_000);
+        ChangeEvent event = new ChangeEvent(7, ChangeEvent.Type.UPSERT, 3, null, value);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // when
+        event.writeTo(new DataOutputStream(bytes));
+        new ChangeEvent(8, ChangeEvent.Type.DELETE, 3, null, null)
+                .writeTo(new DataOutputStream(bytes));
+        // then
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        assertThat(ChangeEvent.readFrom(in), is(event));
+        assertThat(ChangeEvent.readFrom(in).getValue(), is(nullValue()));
+    }
+
+    @Test(timeout = 5000)
+    public void followerWithOtherCapacityEndsEqual() throws Exception {
+        // given
+        BPlusTree leader = new BPlusTree(CAPACITY);
+        leader.setWriteBufferSize(8);
+        ChangeFeed feed = new ChangeFeed(256);
+        leader.setChangeFeed(feed);
+        ChangeFollower follower = new ChangeFollower(
+                new SerializingSource(feed.subscribe()), new BPlusTree(8));
+        TreeMap<Integer, String> batch = new TreeMap<>();
+        for (int key = 1000; key < 1100; key += 3) {
+            batch.put(key, "m" + key);
+        }
+        // when
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextInt(2000);
+            if (i % 3 == 0) {
+                leader.delete(key);
+            } else {
+                leader.insert(key, "v" + i);
+            }
+            if (i == 2500) {
+                leader.deleteRange(500, 900);
+                leader.mergeSorted(batch.entrySet().iterator());
+            }
+            if (i % 50 == 0) {
+                follower.applyAvailable(100, 0, TimeUnit.SECONDS);
+            }
+        }
+        BPlusTree upper = leader.splitAt(1500);
+        // then
+        assertThat(follower.awaitSequence(feed.getPublishedSequence(), 1,
+                                          TimeUnit.SECONDS), is(true));
+        assertThat(follower.getTree().diff(leader), is(Collections.<Integer>emptyList()));
+        assertThat(follower.getTree().lookup(upper.scan(null, null).next().getKey()),
+                   is(nullValue()));
+        assertThat(follower.getTree().verify(), is(Collections.<String>emptyList()));
+    }
+
+    @Test(timeout = 5000)
+    public void writerBlocksWhileRingIsFull() throws Exception {
+        // given
+        BPlusTree tree = new BPlusTree(CAPACITY);
+        ChangeFeed feed = new ChangeFeed(4);
+        tree.setChangeFeed(feed);
+        ChangeFeed.Subscription subscription = feed.subscribe();
+        for (int key = 0; key < 4; key++) {
+            tree.insert(key, "v");
+        }
+        AtomicBoolean inserted = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            tree.insert(4, "v");
+            inserted.set(true);
+        });
+        // when
+        writer.start();
+        writer.join(200);
+        // then
+        assertThat(inserted.get(), is(false));
+        assertThat(subscription.poll(2, 0, TimeUnit.SECONDS).size(), is(2));
+        writer.join();
+        assertThat(inserted.get(), is(true));
+        assertThat(subscription.poll(10, 0, TimeUnit.SECONDS).size(), is(3));
+    }
+
+    @Test(timeout = 5000)
+    public void closedSubscriptionReleasesWriter() throws Exception {
+        // given
+        BPlusTree tree = new BPlusTree(CAPACITY);
+        ChangeFeed feed = new ChangeFeed(2);
+        tree.setChangeFeed(feed);
+        ChangeFeed.Subscription subscription = feed.subscribe();
+        // when
+        subscription.close();
+        for (int key = 0; key < 100; key++) {
+            tree.insert(key, "v");
+        }
+        // then
+        assertThat(feed.getPublishedSequence(), is(100L));
+        assertThat(subscription.poll(10, 0, TimeUnit.SECONDS).size(), is(0));
+    }
+
+    @Test
+    public void followerDetectsGap() throws Exception {
+        // given
+        BPlusTree tree = new BPlusTree(CAPACITY);
+        ChangeFeed feed = new ChangeFeed(16);
+        tree.setChangeFeed(feed);
+        tree.insert(1, "a");
+        ChangeFollower follower = new ChangeFollower(feed.subscribe(), new BPlusTree(CAPACITY));
+        tree.insert(2, "b");
+        // when
+        try {
+            follower.applyAvailable(10, 0, TimeUnit.SECONDS);
+            fail("Missing event 1 not detected");
+        } catch (IllegalStateException e) {
+            // then
+            assertThat(follower.getAppliedSequence(), is(0L));
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ImmutableBPlusTreeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void lookupInSmallTree() throws IOException {
+        // given
+        BPlusTree tree = newTree(newNode(keys(3), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4), values("c", "d")))));
+        Path file = folder.newFile("small.index").toPath();
+        ImmutableBPlusTree.write(tree, file);
+        // when
+        try (ImmutableBPlusTree index = ImmutableBPlusTree.open(file)) {
+            // then
+            assertThat(index.size(), is(4));
+            assertThat(index.lookup(3), is("c"));
+            assertThat(index.lookup(0), is(nullValue()));
+            assertThat(index.lookup(5), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void lookupThroughFenceLevels() throws IOException {
+        // given
+        BPlusTree tree = new BPlusTree(8);
+        for (int i = 0; i < 5000; i++) {
+            tree.insert(i * 3, "v" + i);
+        }
+        Path file = folder.newFile("large.index").toPath();
+        ImmutableBPlusTree.write(tree, file, 4);
+        // when
+        try (ImmutableBPlusTree index = ImmutableBPlusTree.open(file)) {
+            // then
+            for (int key = -1; key < 15003; key++) {
+                assertThat(index.lookup(key), is(tree.lookup(key)));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectNullValues() throws IOException {
+        // given
+        BPlusTree tree = newTree(newLeaf(keys(1, 2), values("a", null)));
+        Path file = folder.newFile("null.index").toPath();
+        // when
+        ImmutableBPlusTree.write(tree, file);
+    }
+
+    @Test
+    public void scanRange() throws IOException {
+        // given
+        BPlusTree tree = new BPlusTree(4);
+        for (int i = 0; i < 100; i++) {
+            tree.insert(i * 2, "v" + i);
+        }
+        Path file = folder.newFile("scan.index").toPath();
+        ImmutableBPlusTree.write(tree, file, 4);
+        // when
+        try (ImmutableBPlusTree index = ImmutableBPlusTree.open(file)) {
+            Iterator<Map.Entry<Integer, String>> expected = tree.scan(31, 61);
+            Iterator<Map.Entry<Integer, String>> actual = index.scan(31, 61);
+            // then
+            while (expected.hasNext()) {
+                assertThat(actual.next(), is(expected.next()));
+            }
+            assertThat(actual.hasNext(), is(false));
+        }
+    }
+
+    @Test
+    public void writeLeavesTraceUntouched() throws IOException {
+        // given
+        BPlusTree tree = newTree(newNode(keys(3), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4), values("c", "d")))));
+        TraceRecorder recorder = new TraceRecorder(new ByteArrayOutputStream());
+        tree.setTraceRecorder(recorder);
+        Path file = folder.newFile("traced.index").toPath();
+        // when
+        ImmutableBPlusTree.write(tree, file);
+        // then
+        assertThat(recorder.getRecorded(), is(0L));
+        recorder.close();
+    }
+
+}
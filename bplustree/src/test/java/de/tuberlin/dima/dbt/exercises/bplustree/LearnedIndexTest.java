@@ -0,0 +1,110 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class LearnedIndexTest {
+
+    @Test
+    public void lookupInSmallTree() {
+        // given
+        BPlusTree tree = newTree(newNode(keys(3, 5), nodes(
+                newLeaf(keys(1, 2), values("a", "b")),
+                newLeaf(keys(3, 4), values("c", "d")),
+                newLeaf(keys(5, 6), values("e", "f")))));
+        // when
+        LearnedIndex index = LearnedIndex.build(tree);
+        // then
+        assertThat(index.lookup(1), is("a"));
+        assertThat(index.lookup(4), is("d"));
+        assertThat(index.lookup(5), is("e"));
+        assertThat(index.lookup(0), is(nullValue()));
+        assertThat(index.lookup(7), is(nullValue()));
+        assertThat(LearnedIndex.build(newEmptyTree()).lookup(1), is(nullValue()));
+    }
+
+    @Test
+    public void lookupWithIrregularKeys() {
+        // given
+        BPlusTree tree = new BPlusTree(CAPACITY);
+        Random random = new Random(42);
+        int key = -5000;
+        for (int i = 0; i < 2000; i++) {
+            //dense runs and large jumps
+            key += random.nextInt(10) == 0 ? random.nextInt(100_000) : 1 + random.nextInt(3);
+            tree.insert(key, "v" + key);
+        }
+        tree.insert(Integer.MIN_VALUE, "min");
+        tree.insert(Integer.MAX_VALUE, "max");
+        tree.compressLeaves();
+        // when
+        for (int epsilon : new int[] {1, 2, 8, 64}) {
+            LearnedIndex index = LearnedIndex.build(tree, epsilon);
+            // then
+            for (int probe = -6000; probe <= key + 10; probe += probe < 0 ? 1 : 7) {
+                assertThat(index.lookup(probe), is(tree.lookup(probe)));
+            }
+            assertThat(index.lookup(Integer.MIN_VALUE), is("min"));
+            assertThat(index.lookup(Integer.MAX_VALUE), is("max"));
+        }
+    }
+
+    @Test
+    public void scanFromEveryStart() {
+        // given
+        BPlusTree tree = new BPlusTree(CAPACITY);
+        for (int i = 0; i < 300; i++) {
+            tree.insert(i * 3, "v" + i);
+        }
+        LearnedIndex index = LearnedIndex.build(tree, 2);
+        // when
+        for (int from = -2; from < 905; from += 5) {
+            // then
+            assertThat(entries(index.scan(from, from + 40)),
+                       is(entries(tree.scan(from, from + 40))));
+        }
+        assertThat(entries(index.scan(null, null)), is(entries(tree.scan(null, null))));
+    }
+
+    @Test
+    public void fallBackAfterWrite() {
+        // given
+        BPlusTree tree = newTree(newLeaf(keys(1, 2), values("a", "b")));
+        LearnedIndex index = LearnedIndex.build(tree);
+        Iterator<Map.Entry<Integer, String>> entries = index.scan(null, null);
+        // when
+        tree.insert(3, "c");
+        // then
+        assertThat(index.isStale(), is(true));
+        assertThat(index.lookup(3), is("c"));
+        assertThat(entries(index.scan(3, null)).size(), is(1));
+        assertThat(LearnedIndex.build(tree).isStale(), is(false));
+        try {
+            entries.hasNext();
+            throw new AssertionError("Write not detected");
+        } catch (ConcurrentModificationException e) {
+            // expected
+        }
+    }
+
+    private static List<Map.Entry<Integer, String>> entries(
+            Iterator<Map.Entry<Integer, String>> iterator) {
+        List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+        while (iterator.hasNext()) {
+            entries.add(iterator.next());
+        }
+        return entries;
+    }
+
+}
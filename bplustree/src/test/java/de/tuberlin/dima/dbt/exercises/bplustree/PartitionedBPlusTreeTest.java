@@ -0,0 +1,99 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class PartitionedBPlusTreeTest {
+
+    @Test(timeout = 5000)
+    public void scanAcrossPartitions() {
+        // given
+        PartitionedBPlusTree tree = new PartitionedBPlusTree(CAPACITY,
+                                                             new int[] {10, 20});
+        for (int key = 0; key < 30; key++) {
+            tree.insert(key, String.valueOf(key));
+        }
+        // when
+        List<Integer> keys = new ArrayList<>();
+        Iterator<Map.Entry<Integer, String>> it = tree.scan(5, 25);
+        while (it.hasNext()) {
+            keys.add(it.next().getKey());
+        }
+        // then
+        assertThat(keys.size(), is(20));
+        for (int i = 0; i < keys.size(); i++) {
+            assertThat(keys.get(i), is(i + 5));
+        }
+        assertThat(tree.lookup(15), is("15"));
+        assertThat(tree.delete(15), is("15"));
+        assertThat(tree.lookup(15), is(nullValue()));
+    }
+
+    @Test(timeout = 5000)
+    public void splitHotPartition() {
+        // given
+        PartitionedBPlusTree tree = new PartitionedBPlusTree(CAPACITY, 1);
+        tree.setHotPartitionWrites(100);
+        // when
+        for (int key = 0; key < 100; key++) {
+            tree.insert(key, String.valueOf(key));
+        }
+        // then
+        assertThat(tree.getLowerBounds().length, is(2));
+        assertThat(tree.getLowerBounds()[1], is(50));
+        for (int key = 0; key < 100; key++) {
+            assertThat(tree.lookup(key), is(String.valueOf(key)));
+        }
+        Iterator<Map.Entry<Integer, String>> it = tree.scan(null, null);
+        for (int key = 0; key < 100; key++) {
+            assertThat(it.next().getKey(), is(key));
+        }
+        assertThat(it.hasNext(), is(false));
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentInsertsWhileSplitting() throws InterruptedException {
+        // given
+        PartitionedBPlusTree tree = new PartitionedBPlusTree(CAPACITY, 4);
+        tree.setHotPartitionWrites(500);
+        int threads = 4;
+        int perThread = 5000;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            workers.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    int key = i * threads + offset;
+                    tree.insert(key, String.valueOf(key));
+                }
+            }));
+        }
+        // when
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        // then
+        for (int key = 0; key < threads * perThread; key++) {
+            assertThat(tree.lookup(key), is(String.valueOf(key)));
+        }
+        int count = 0;
+        Iterator<Map.Entry<Integer, String>> it = tree.scan(null, null);
+        while (it.hasNext()) {
+            assertThat(it.next().getKey(), is(count++));
+        }
+        assertThat(count, is(threads * perThread));
+    }
+
+}
@@ -0,0 +1,171 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TraceReplayerTest {
+
+    @Test(timeout = 5000)
+    public void recordAndCountOperations() throws IOException {
+        // given
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TraceRecorder recorder = new TraceRecorder(out);
+        BPlusTree tree = new BPlusTree(CAPACITY);
+        tree.setTraceRecorder(recorder);
+        // when
+        tree.insert(1, "a");
+        tree.insert(-7, "bb");
+        tree.upsert(1, "ccc");
+        tree.lookup(1);
+        tree.lookup(2);
+        tree.scan(null, 5);
+        tree.compute(3, (key, value) -> "d");
+        tree.delete(2);
+        tree.deleteRange(-10, null);
+        recorder.close();
+        tree.insert(4, "e");
+        // then
+        TraceReplayer trace = TraceReplayer.load(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(recorder.getRecorded(), is(9L));
+        assertThat(trace.size(), is(9));
+        Map<TraceRecorder.Operation, Integer> counts = trace.countOperations();
+        assertThat(counts.get(TraceRecorder.Operation.INSERT), is(2));
+        assertThat(counts.get(TraceRecorder.Operation.LOOKUP), is(2));
+        assertThat(counts.get(TraceRecorder.Operation.UPSERT), is(1));
+        assertThat(counts.get(TraceRecorder.Operation.SCAN), is(1));
+        assertThat(counts.get(TraceRecorder.Operation.COMPUTE), is(1));
+        assertThat(counts.get(TraceRecorder.Operation.DELETE), is(1));
+        assertThat(counts.get(TraceRecorder.Operation.DELETE_RANGE), is(1));
+        assertTrue(trace.getRecordedNanos() >= 0);
+    }
+
+    @Test(timeout = 5000)
+    public void recordSnapshotReadsOnce() throws IOException {
+        // given
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BPlusTree tree = new BPlusTree(CAPACITY);
+        for (int key = 0; key < 20; key++) {
+            tree.insert(key, "v");
+        }
+        TraceRecorder recorder = new TraceRecorder(out);
+        tree.setTraceRecorder(recorder);
+        // when
+        ReadSnapshot snapshot = tree.beginRead();
+        tree.lookup(3, snapshot);
+        Iterator<Map.Entry<Integer, String>> entries = tree.scan(null, null, snapshot);
+        int key = 100;
+        while (entries.hasNext()) {
+            entries.next();
+            //every write makes the snapshot scan seek again
+            tree.insert(key++, "w");
+        }
+        snapshot.close();
+        recorder.close();
+        // then
+        TraceReplayer trace = TraceReplayer.load(new ByteArrayInputStream(out.toByteArray()));
+        Map<TraceRecorder.Operation, Integer> counts = trace.countOperations();
+        assertThat(counts.get(TraceRecorder.Operation.LOOKUP), is(1));
+        assertThat(counts.get(TraceRecorder.Operation.SCAN), is(1));
+        assertThat(counts.get(TraceRecorder.Operation.INSERT), is(20));
+    }
+
+    @Test(timeout = 5000)
+    public void replayReproducesKeys() throws IOException {
+        // given
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BPlusTree tree = new BPlusTree(CAPACITY);
+        tree.setTraceRecorder(new TraceRecorder(out));
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextInt(2000) - 1000;
+            switch (random.nextInt(6)) {
+                case 0:
+                    tree.delete(key);
+                    break;
+                case 1:
+                    tree.lookup(key);
+                    break;
+                case 2:
+                    tree.compute(key, (k, value) -> value == null ? "new" : null);
+                    break;
+                case 3:
+                    if (random.nextInt(50) == 0) {
+                        tree.deleteRange(key, key + 20);
+                    }
+                    break;
+                default:
+                    tree.insert(key, "v" + key);
+            }
+        }
+        tree.getTraceRecorder().close();
+        TraceReplayer trace = TraceReplayer.load(new ByteArrayInputStream(out.toByteArray()));
+        // when
+        BPlusTree replayed = new BPlusTree(8);
+        TraceReplayer.Result result = trace.replay(TraceReplayer.forTree(replayed), 1);
+        // then
+        assertThat(keysOf(replayed.scan(null, null)), is(keysOf(tree.scan(null, null))));
+        assertThat(result.percentile(0.5) <= result.percentile(0.99), is(true));
+        assertThat(result.percentile(0.99) <= result.percentile(1.0), is(true));
+        assertTrue(result.getThroughput() > 0);
+        assertTrue(replayed.verify().isEmpty());
+    }
+
+    @Test(timeout = 5000)
+    public void replayOnSeveralThreads() throws IOException {
+        // given
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BPlusTree tree = new BPlusTree(CAPACITY);
+        tree.setTraceRecorder(new TraceRecorder(out));
+        Random random = new Random(7);
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextInt(1000);
+            if (random.nextInt(200) == 0) {
+                //range operations run while no other thread writes
+                tree.deleteRange(key, key + 50);
+                tree.scan(key, null);
+            } else if (random.nextInt(3) == 0) {
+                tree.delete(key);
+            } else {
+                tree.insert(key, "v");
+            }
+        }
+        tree.getTraceRecorder().close();
+        TraceReplayer trace = TraceReplayer.load(new ByteArrayInputStream(out.toByteArray()));
+        // when
+        PartitionedBPlusTree partitioned = new PartitionedBPlusTree(CAPACITY, 4);
+        trace.replay(TraceReplayer.forPartitionedTree(partitioned), 4);
+        BPlusTree shared = new BPlusTree(CAPACITY);
+        trace.replay(TraceReplayer.forTree(shared), 3);
+        // then
+        List<Integer> expected = keysOf(tree.scan(null, null));
+        assertThat(keysOf(partitioned.scan(null, null)), is(expected));
+        assertThat(keysOf(shared.scan(null, null)), is(expected));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectForeignFiles() throws IOException {
+        TraceReplayer.load(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5}));
+    }
+
+    private static List<Integer> keysOf(Iterator<Map.Entry<Integer, String>> entries) {
+        List<Integer> keys = new ArrayList<>();
+        while (entries.hasNext()) {
+            keys.add(entries.next().getKey());
+        }
+        return keys;
+    }
+
+}